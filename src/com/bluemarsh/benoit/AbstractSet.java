@@ -23,11 +23,14 @@
 package com.bluemarsh.benoit;
 
 import com.bluemarsh.benoit.model.Parameters;
+import com.bluemarsh.benoit.render.DwellData;
 import java.awt.Image;
-import java.lang.ref.SoftReference;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.logging.Logger;
 import javax.swing.event.EventListenerList;
 
 /**
@@ -40,13 +43,19 @@ public abstract class AbstractSet implements Set {
     protected static final int RENDERER_CHANGED = 1;
     /** Event type: history changed. */
     protected static final int HISTORY_CHANGED = 2;
+    /** Logger. */
+    private static Logger logger = Logger.getLogger("com.bluemarsh.benoit");
     /** History of visited regions of the set. */
     protected List historyList;
     /** Offset within the history marking the current position.
      * A value of -1 indicates there is no history. */
     protected int historyIndex;
+    /** Images and dwell data of the history entries. */
+    protected HistoryCache historyCache;
     /** List of set listeners. */
     protected EventListenerList setListeners;
+    /** History entry whose image is being recreated, may be null. */
+    protected ListEntry pendingEntry;
 
     /**
      * Constructs an AbstractSet.
@@ -54,6 +63,7 @@ public abstract class AbstractSet implements Set {
     public AbstractSet() {
         historyList = new ArrayList();
         historyIndex = -1;
+        historyCache = new HistoryCache(HistoryCache.getDefaultBudget());
         setListeners = new EventListenerList();
     } // AbstractSet
 
@@ -72,18 +82,29 @@ public abstract class AbstractSet implements Set {
      * @param  image  image to cache.
      */
     protected void cacheImage(Image image) {
+        cacheImage(image, null);
+    } // cacheImage
+
+    /**
+     * Save the image and its dwell data in the history cache. The image
+     * can be recreated from the dwell data, which is kept longer than
+     * the image when memory is short.
+     *
+     * @param  image   image to cache.
+     * @param  dwells  dwell data of the image, may be null.
+     */
+    protected void cacheImage(Image image, DwellData dwells) {
         ListEntry entry = (ListEntry) historyList.get(historyIndex);
         // Save the current image in case we should show it again.
-        if (entry.cachedImage == null) {
-            // That is, if it is not already saved.
-            entry.cachedImage = new SoftReference(image);
-        }
+        historyCache.put(entry, image, dwells);
     } // cacheImage
 
     /**
      * Closes the Set in preparation for non-use.
      */
     public void close() {
+        logger.fine(historyCache.toString());
+        historyCache.clear();
     } // close
 
     /**
@@ -141,19 +162,50 @@ public abstract class AbstractSet implements Set {
      */
     protected void historyCommon() {
         renderStop();
-        ListEntry entry = (ListEntry) historyList.get(historyIndex);
-        Image image = entry.getImage();
-        if (image == null) {
-            // Cached image disappeared, have to render again.
-            renderLow(entry.parameters);
-        } else {
+        final ListEntry entry = (ListEntry) historyList.get(historyIndex);
+        pendingEntry = null;
+        Image image = historyCache.getImage(entry);
+        if (image != null) {
             // Show the cached image.
             setParameters(entry.parameters);
             showImage(image);
+        } else if (historyCache.contains(entry)) {
+            // Recreate the image from its dwell data, off this thread.
+            setParameters(entry.parameters);
+            pendingEntry = entry;
+            historyCache.recreateImage(entry, new Runnable() {
+                public void run() {
+                    historyRecreated(entry);
+                }
+            });
+        } else {
+            // Cached image disappeared, have to render again.
+            renderLow(entry.parameters);
         }
         fireChange(HISTORY_CHANGED);
     } // historyCommon
 
+    /**
+     * Shows the image of the given history entry, now that it has been
+     * recreated from its dwell data, unless another entry has been shown
+     * or rendered since. If the image could not be recreated, the entry
+     * is rendered again.
+     *
+     * @param  entry  history entry whose image was recreated.
+     */
+    protected void historyRecreated(ListEntry entry) {
+        if (pendingEntry != entry) {
+            return;
+        }
+        pendingEntry = null;
+        Image image = historyCache.getImage(entry);
+        if (image == null) {
+            renderLow(entry.parameters);
+        } else {
+            showImage(image);
+        }
+    } // historyRecreated
+
     /**
      * Redraw the region of the set represented by the parameters in
      * the next slot of the parameters history list.
@@ -200,7 +252,7 @@ public abstract class AbstractSet implements Set {
             // No, have to erase obsolete history.
             ListIterator iter = historyList.listIterator(historyIndex + 1);
             while (iter.hasNext()) {
-                iter.next();
+                historyCache.remove(iter.next());
                 iter.remove();
             }
         }
@@ -218,7 +270,7 @@ public abstract class AbstractSet implements Set {
 
         if (saveEntry) {
             // Get the current parameters and save them.
-            ListEntry entry = new ListEntry(params, null);
+            ListEntry entry = new ListEntry(params);
             historyList.add(entry);
             historyIndex++;
         }
@@ -235,6 +287,122 @@ public abstract class AbstractSet implements Set {
      */
     public abstract void renderLow(Parameters params);
 
+    /**
+     * Restores the history saved by <code>saveSession()</code>, and
+     * shows the entry that was current. The dwell data of the entries
+     * is read as each entry is shown, so this returns quickly.
+     *
+     * @param  file  file holding the session.
+     * @return  true if a session was restored, false if none was saved.
+     * @throws  IOException
+     *          if the file could not be read.
+     */
+    public boolean restoreSession(File file) throws IOException {
+        List params = new ArrayList();
+        List payloads = new ArrayList();
+        int index = new HistorySession(file).load(params, payloads);
+        if (index < 0 || params.size() == 0) {
+            return false;
+        }
+        renderStop();
+        historyList.clear();
+        historyCache.clear();
+        for (int i = 0; i < params.size(); i++) {
+            ListEntry entry = new ListEntry((Parameters) params.get(i));
+            historyList.add(entry);
+            HistorySession.Payload payload =
+                (HistorySession.Payload) payloads.get(i);
+            if (payload != null) {
+                historyCache.putStored(entry, payload);
+            }
+        }
+        historyIndex = Math.max(0, Math.min(index, historyList.size() - 1));
+        ListEntry entry = (ListEntry) historyList.get(historyIndex);
+        setNumberType(entry.parameters.getMinX().getType());
+        historyCommon();
+        return true;
+    } // restoreSession
+
+    /**
+     * Copies the history entries, with their dwell data as held by the
+     * history cache.
+     *
+     * @param  params  receives the Parameters of each entry.
+     * @param  held    receives the dwell data of each entry.
+     */
+    private void captureSession(List params, List held) {
+        for (int i = 0; i < historyList.size(); i++) {
+            ListEntry entry = (ListEntry) historyList.get(i);
+            params.add(entry.parameters);
+            held.add(historyCache.getHeld(entry));
+        }
+    } // captureSession
+
+    /**
+     * Captures the history as it is now, and returns a task that saves
+     * it. Only the list of entries is copied here; the dwell data is
+     * packed, or read from the previous session, by the task.
+     *
+     * @param  file  file to save the session to.
+     * @return  task that saves the session, or null if no history.
+     */
+    public Runnable createSessionSaver(final File file) {
+        if (historyList.size() == 0) {
+            return null;
+        }
+        final List params = new ArrayList();
+        final List held = new ArrayList();
+        captureSession(params, held);
+        final int index = historyIndex;
+        return new Runnable() {
+            public void run() {
+                try {
+                    writeSession(file, params, held, index);
+                } catch (IOException ioe) {
+                    logger.warning("could not save session: " + ioe);
+                }
+            }
+        };
+    } // createSessionSaver
+
+    /**
+     * Saves the history, with the dwell data of each entry that has
+     * been rendered, so that it may later be restored. Does nothing if
+     * there is no history.
+     *
+     * @param  file  file to save the session to.
+     * @throws  IOException
+     *          if the file could not be written.
+     */
+    public void saveSession(File file) throws IOException {
+        if (historyList.size() == 0) {
+            return;
+        }
+        List params = new ArrayList();
+        List held = new ArrayList();
+        captureSession(params, held);
+        writeSession(file, params, held, historyIndex);
+    } // saveSession
+
+    /**
+     * Writes a session file from the given history.
+     *
+     * @param  file    file to save the session to.
+     * @param  params  Parameters of each entry.
+     * @param  held    dwell data of each entry, as held by the cache.
+     * @param  index   index of the current entry.
+     * @throws  IOException
+     *          if the file could not be written.
+     */
+    private static void writeSession(File file, List params, List held,
+                                     int index) throws IOException {
+        List payloads = new ArrayList();
+        for (int i = 0; i < held.size(); i++) {
+            payloads.add(HistoryCache.toPacked(held.get(i)));
+        }
+        new HistorySession(file).save(params, payloads, index);
+    } // writeSession
+
     /**
      * Show the given image in preference to the one presently shown.
      *
@@ -243,32 +411,20 @@ public abstract class AbstractSet implements Set {
     protected abstract void showImage(Image image);
 
     /**
-     * Wrapper for the Parameters and rendered image in the history list.
+     * Wrapper for the Parameters in the history list. The rendered image
+     * is kept in the history cache, keyed by the entry.
      */
     protected class ListEntry {
         /** Parameters */
         public Parameters parameters;
-        /** Cached image */
-        public SoftReference cachedImage;
 
         /**
          * Constructs a ListEntry.
          *
          * @param  parameters   Parameters instance.
-         * @param  cachedImage  cached image, wrapped in a SoftReference.
          */
-        public ListEntry(Parameters parameters, SoftReference cachedImage) {
+        public ListEntry(Parameters parameters) {
             this.parameters = parameters;
-            this.cachedImage = cachedImage;
         } // ListEntry
-
-        /**
-         * Retrieve the cached image, if any.
-         *
-         * @return  cached image, or null if none.
-         */
-        public Image getImage() {
-            return cachedImage == null ? null : (Image) cachedImage.get();
-        } // getImage
     } // ListEntry
 } // AbstractSet
@@ -24,32 +24,62 @@ package com.bluemarsh.benoit;
 
 import com.bluemarsh.benoit.model.BenoitNumber;
 import com.bluemarsh.benoit.model.Parameters;
+import com.bluemarsh.benoit.render.AbstractRenderer;
+import com.bluemarsh.benoit.render.AnytimeRenderer;
 import com.bluemarsh.benoit.render.BigDecimalRenderer;
+import com.bluemarsh.benoit.render.CancelToken;
+import com.bluemarsh.benoit.render.Checkpoint;
+import com.bluemarsh.benoit.render.DiskRenderCache;
+import com.bluemarsh.benoit.render.DwellData;
 import com.bluemarsh.benoit.render.FastDoublesRenderer;
+import com.bluemarsh.benoit.render.FrameBuffer;
+import com.bluemarsh.benoit.render.PixelGrid;
+import com.bluemarsh.benoit.render.RenderJob;
 import com.bluemarsh.benoit.render.Renderer;
 import com.bluemarsh.benoit.render.RenderEvent;
+import com.bluemarsh.benoit.render.RenderExecutor;
+import com.bluemarsh.benoit.render.RenderScope;
 import com.bluemarsh.benoit.render.RenderListener;
+import com.bluemarsh.benoit.render.SharedRenderCache;
+import com.bluemarsh.benoit.render.SpiralOrder;
+import com.bluemarsh.benoit.render.TileCache;
+import com.bluemarsh.benoit.render.TileOrder;
+import com.bluemarsh.benoit.render.ViewportOrder;
+import com.bluemarsh.benoit.render.VisibleRegion;
 import java.awt.BasicStroke;
 import java.awt.Color;
 import java.awt.Component;
 import java.awt.Cursor;
 import java.awt.Dimension;
+import java.awt.EventQueue;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
 import java.awt.Image;
 import java.awt.Insets;
+import java.awt.Point;
 import java.awt.Rectangle;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.awt.image.BufferedImage;
 import java.awt.image.ImageObserver;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 import javax.swing.Box;
 import javax.swing.JComponent;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JTextField;
+import javax.swing.JViewport;
 import javax.swing.Scrollable;
+import javax.swing.Timer;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 
 /**
  * The default implementation of a Set.
@@ -57,35 +87,89 @@ import javax.swing.Scrollable;
  * @author  Nathan Fiedler
  */
 public class DefaultSet extends AbstractSet implements RenderListener {
+    /** Sample step of the finest preview render. */
+    private static final int PREVIEW_STEP = 4;
+    /** Least time given to the preview renders, in milliseconds. */
+    private static final long PREVIEW_TIME = 100;
+    /** Percentage of the progress given to the preview renders. */
+    private static final int PREVIEW_PROGRESS = 10;
+    /** Milliseconds between repaints of the image while rendering. */
+    private static final int FRAME_INTERVAL = 16;
+    /** Milliseconds between checkpoints of a full quality render. */
+    private static final long CHECKPOINT_INTERVAL = 30000;
+    /** Milliseconds a render must take to be worth saving to disk. */
+    private static final long DISK_THRESHOLD = Long.getLong(
+        "benoit.render.diskThreshold", 2000).longValue();
+    /** Number of history entries on either side to render ahead. */
+    private static final int PREFETCH_DISTANCE = Integer.getInteger(
+        "benoit.history.prefetch", 2).intValue();
     /** Widgets representing the region boundaries. */
     private Settings settings;
     /** Wrapper object for our set. */
     private JComponent wrapper;
     /** The component that shows the image. */
     private ImageComponent imageComponent;
-    /** Image to which the renderer draws. */
-    private Image image;
+    /** Image being shown, to which the renderer publishes. */
+    private volatile Image image;
+    /** Image whose render has finished, waiting to be cached. */
+    private AtomicReference finishedImage;
+    /** Dwell data of the finished image, waiting to be cached. */
+    private AtomicReference finishedDwells;
     /** Set renderer. */
     private Renderer renderer;
-    /** Thread on which to perform the rendering. */
-    private Thread renderThread;
+    /** Scope that encloses all of the renders of this set. */
+    private RenderScope setScope;
+    /** Scope of the current render, may be null. */
+    private volatile RenderScope renderScope;
+    /** Client of the render executor on whose behalf we render. */
+    private RenderExecutor.Client renderClient;
+    /** Scope of the history prefetch, may be null. */
+    private RenderScope prefetchScope;
+    /** Client of the render executor for the history prefetch. */
+    private RenderExecutor.Client prefetchClient;
     /** One of the BenoitNumber constants. */
     private int numericType;
     /** Cursor shown over rendered image. */
     private Cursor crossHairCursor;
     /** Cursor shown while rendering image. */
     private Cursor waitCursor;
+    /** Dwell limit for full quality renders. */
+    private int dwellLimit;
+    /** Time the input must be idle before rendering at full quality. */
+    private long idleDelay;
+    /** Time at which the user last interacted with the set. */
+    private volatile long lastInteraction;
+    /** Portion of the image visible in the scroll pane. */
+    private VisibleRegion visibleRegion;
+    /** X position within the set of the user's focus, may be null. */
+    private BenoitNumber focusX;
+    /** Y position within the set of the user's focus, may be null. */
+    private BenoitNumber focusY;
+    /** Portion of the image changed since the last repaint. */
+    private Rectangle dirtyRegion;
+    /** Repaints the changed portion of the image once per frame. */
+    private Timer repaintTimer;
 
     /**
      * Constructs a DefaultSet.
      */
     public DefaultSet() {
+        finishedImage = new AtomicReference();
+        finishedDwells = new AtomicReference();
         image = newImage();
         imageComponent = new ImageComponent(image);
         crossHairCursor = new Cursor(Cursor.CROSSHAIR_CURSOR);
         waitCursor = new Cursor(Cursor.CROSSHAIR_CURSOR);
         imageComponent.setCursor(crossHairCursor);
+        renderClient = RenderExecutor.getDefault().createClient("set");
+        prefetchClient = RenderExecutor.getDefault().createClient("prefetch");
+        prefetchClient.setBackground(true);
+        setScope = new RenderScope("set");
+        repaintTimer = new Timer(FRAME_INTERVAL, new DirtyRegionPainter());
+        repaintTimer.setRepeats(false);
         JScrollPane scroller = new JScrollPane(imageComponent);
+        visibleRegion = new VisibleRegion();
+        scroller.getViewport().addChangeListener(new ViewportTracker());
 
         settings = new Settings();
         GridBagLayout gbl = new GridBagLayout();
@@ -111,6 +195,8 @@ public class DefaultSet extends AbstractSet implements RenderListener {
         Parameters params = new Parameters(minX, maxX, minY, maxY);
         numericType = BenoitNumber.DOUBLE_TYPE;
         settings.setParameters(params);
+        dwellLimit = RenderJob.DEFAULT_DWELL_LIMIT;
+        idleDelay = 400;
     } // DefaultSet
 
     /**
@@ -121,8 +207,30 @@ public class DefaultSet extends AbstractSet implements RenderListener {
             renderer.removeListener(this);
             renderStop();
         }
+        // Stop anything still running on behalf of this set, and drop
+        // the image being recreated, which would otherwise render.
+        setScope.close();
+        pendingEntry = null;
+        setActive(false);
+        super.close();
     } // close
 
+    /**
+     * Creates a renderer for the given numeric type.
+     *
+     * @param  type  numeric type (one of the BenoitNumber constants).
+     * @return  new renderer.
+     */
+    protected Renderer createRenderer(int type) {
+        if (type == BenoitNumber.DOUBLE_TYPE) {
+            return new FastDoublesRenderer();
+        } else if (type == BenoitNumber.BIG_TYPE) {
+            return new BigDecimalRenderer();
+        } else {
+            throw new IllegalArgumentException("invalid number type");
+        }
+    } // createRenderer
+
     /**
      * Retrieve the last rendered image (does not have to be completely
      * rendered yet).
@@ -154,6 +262,75 @@ public class DefaultSet extends AbstractSet implements RenderListener {
         return settings.getParameters();
     } // getParameters
 
+    /**
+     * Returns the file in which the progress of the full quality render
+     * is recorded. There is one such file for all of the sets, so the
+     * most recent render to save a checkpoint is the one recorded.
+     *
+     * @return  checkpoint file.
+     */
+    protected static File getCheckpointFile() {
+        File dir = new File(System.getProperty("user.home"), ".benoit");
+        return new File(dir, "checkpoint.gz");
+    } // getCheckpointFile
+
+    /**
+     * Returns the checkpoint of an earlier render of the given region,
+     * if there is one, so that it may be resumed. Only the region at
+     * the start of the file is read unless it matches. This reads the
+     * file, so it is called by the render rather than on the event
+     * thread.
+     *
+     * @param  params      boundaries of the region.
+     * @param  width       width of the image.
+     * @param  height      height of the image.
+     * @param  dwellLimit  dwell limit of the render.
+     * @return  matching checkpoint, or null if none.
+     */
+    protected Checkpoint findCheckpoint(Parameters params, int width,
+                                        int height, int dwellLimit) {
+        try {
+            File file = getCheckpointFile();
+            if (!params.equals(Checkpoint.loadParameters(file))) {
+                return null;
+            }
+            Checkpoint cp = Checkpoint.load(file);
+            if (cp != null && cp.matches(params, width, height, dwellLimit)) {
+                return cp;
+            }
+        } catch (IOException ioe) {
+            // Not a usable checkpoint, start from scratch.
+        }
+        return null;
+    } // findCheckpoint
+
+    /**
+     * Returns the position within the image of the user's focus. If the
+     * focus is not set, or lies outside of the region, the center of
+     * the image is returned.
+     *
+     * @param  params  boundaries of the region.
+     * @param  width   width of the image.
+     * @param  height  height of the image.
+     * @return  focus point in image coordinates.
+     */
+    protected Point getFocusPoint(Parameters params, int width, int height) {
+        Point center = new Point(width / 2, height / 2);
+        if (focusX == null || focusY == null) {
+            return center;
+        }
+        BenoitNumber rx = BenoitNumber.subtract(params.getMinX(), focusX);
+        rx.divide(BenoitNumber.subtract(params.getMinX(), params.getMaxX()));
+        BenoitNumber ry = BenoitNumber.subtract(params.getMinY(), focusY);
+        ry.divide(BenoitNumber.subtract(params.getMinY(), params.getMaxY()));
+        double x = rx.doubleValue() * width;
+        double y = ry.doubleValue() * height;
+        if (x < 0 || x >= width || y < 0 || y >= height) {
+            return center;
+        }
+        return new Point((int) x, (int) y);
+    } // getFocusPoint
+
     /**
      * Returns a reference to this Set's renderer.
      *
@@ -173,18 +350,59 @@ public class DefaultSet extends AbstractSet implements RenderListener {
     } // getUI
 
     /**
-     * Called whenever the rendered image has been updated.
+     * Shows the current history entry, then renders ahead the entries
+     * near it if it was found in the history cache.
+     */
+    protected void historyCommon() {
+        super.historyCommon();
+        if (renderScope == null) {
+            prefetchHistory();
+        }
+    } // historyCommon
+
+    /**
+     * Called whenever the rendered image has been updated. The changed
+     * regions are collected and repainted together at the next frame,
+     * so the image is repainted at most once per frame regardless of
+     * how many tiles are finished in the meantime.
+     *
+     * Events from renders that have been cancelled are ignored.
      *
      * @param  e  render update event.
      */
     public void imageUpdated(RenderEvent e) {
-        imageComponent.repaint();
-        if (e.getPercentDone() == 100) {
-            imageComponent.setCursor(crossHairCursor);
-            cacheImage(image);
+        RenderJob job = e.getJob();
+        if (job != null && job.getCancelToken().isCancelled()) {
+            return;
+        }
+        Rectangle region = e.getRegion();
+        if (region == null) {
+            region = new Rectangle(0, 0, image.getWidth(null),
+                                   image.getHeight(null));
+        }
+        boolean schedule;
+        synchronized (repaintTimer) {
+            schedule = dirtyRegion == null;
+            if (schedule) {
+                dirtyRegion = region;
+            } else {
+                dirtyRegion.add(region);
+            }
+        }
+        if (schedule) {
+            repaintTimer.start();
         }
     } // imageUpdated
 
+    /**
+     * Notes that the user is interacting with the set, such as by
+     * dragging a selection. Renders started during an interaction, or
+     * shortly after one, are first drawn at reduced quality.
+     */
+    public void markInteraction() {
+        lastInteraction = System.currentTimeMillis();
+    } // markInteraction
+
     /**
      * Construct a new image to render to.
      *
@@ -195,6 +413,39 @@ public class DefaultSet extends AbstractSet implements RenderListener {
         return new BufferedImage(640, 492, BufferedImage.TYPE_INT_RGB);
     } // newImage
 
+    /**
+     * Starts rendering, in the background, the history entries near the
+     * current one that are not in the history cache, so that going back
+     * or forward shows them at once. The nearest entries are rendered
+     * first. The prefetch runs only while no other rendering is going
+     * on, and stops when a render is started. Does nothing once the set
+     * has been closed.
+     */
+    protected void prefetchHistory() {
+        stopPrefetch();
+        if (setScope.isClosed()) {
+            return;
+        }
+        List entries = new ArrayList();
+        for (int d = 1; d <= PREFETCH_DISTANCE; d++) {
+            int[] indices = { historyIndex + d, historyIndex - d };
+            for (int i = 0; i < indices.length; i++) {
+                int index = indices[i];
+                if (index >= 0 && index < historyList.size()) {
+                    Object entry = historyList.get(index);
+                    if (!historyCache.contains(entry)) {
+                        entries.add(entry);
+                    }
+                }
+            }
+        }
+        if (entries.size() > 0) {
+            prefetchScope = new RenderScope(setScope, "prefetch");
+            prefetchScope.fork(new PrefetchRunner(
+                entries, prefetchScope.getToken()));
+        }
+    } // prefetchHistory
+
     /**
      * Render the region of the set given by the parameters.
      * This does not manage the parameters history list.
@@ -205,35 +456,157 @@ public class DefaultSet extends AbstractSet implements RenderListener {
         if (renderer == null) {
             throw new IllegalStateException("renderer not set");
         }
-        image = newImage();
+        // The user is waiting on this render, not on the prefetch,
+        // nor on an image being recreated from the history.
+        stopPrefetch();
+        pendingEntry = null;
+        FrameBuffer frame = new FrameBuffer(newImage(), newImage());
+        image = frame.getFrontImage();
         showImage(image);
         int width = image.getWidth(null);
         int height = image.getHeight(null);
         params.adjustAspect(width, height);
+        // Line the region up with the pixel grid for its zoom, so that
+        // it can reuse the points of other views at the same zoom.
+        PixelGrid.snap(params, width, height);
         setParameters(params);
         imageComponent.setCursor(waitCursor);
-        renderThread = new Thread(new RenderRunner(image, params, renderer));
-        renderThread.start();
+        Point focus = getFocusPoint(params, width, height);
+        TileOrder order = new ViewportOrder(visibleRegion,
+                                            new SpiralOrder(focus));
+        RenderScope scope = new RenderScope(setScope, "render");
+        renderScope = scope;
+        scope.fork(new RenderRunner(frame, params, renderer, dwellLimit,
+                                    order, scope.getToken()));
     } // renderLow
 
+    /**
+     * Pauses the current rendering, saving a checkpoint of its progress.
+     * Has no affect if rendering has already completed.
+     */
+    public void renderPause() {
+        RenderScope scope = renderScope;
+        if (scope != null) {
+            scope.getToken().pause();
+        }
+    } // renderPause
+
+    /**
+     * Resumes the current rendering after it was paused.
+     */
+    public void renderResume() {
+        RenderScope scope = renderScope;
+        if (scope != null) {
+            scope.getToken().resume();
+        }
+    } // renderResume
+
     /**
      * Cause the current rendering to stop. Has no affect if rendering
-     * has already completed.
+     * has already completed. This only closes the scope of the render
+     * and returns immediately; the render tasks notice the signal within
+     * a point or two and finish on their own, and any updates they send
+     * in the meantime are ignored.
      */
     public void renderStop() {
-        if (renderThread != null && renderThread.isAlive()) {
-            renderThread.interrupt();
-            try {
-                // Wait for the render thread to stop.
-                renderThread.join();
-            } catch (InterruptedException ie) {
-                // fall through
-            }
-            renderThread = null;
+        RenderScope scope = renderScope;
+        if (scope != null) {
+            scope.close();
+            renderScope = null;
             imageComponent.setCursor(crossHairCursor);
         }
     } // renderStop
 
+    /**
+     * Resumes the render recorded in the checkpoint file, if there is
+     * one, such as a render that was running when the program exited.
+     * If the region is in the history, that entry becomes the current
+     * one; otherwise the region is added to the end of the history.
+     * Either way the rest of the history is left as it was.
+     *
+     * @return  true if a render was resumed, false otherwise.
+     */
+    public boolean resumeCheckpoint() {
+        Parameters params;
+        try {
+            params = Checkpoint.loadParameters(getCheckpointFile());
+        } catch (IOException ioe) {
+            return false;
+        }
+        if (params == null) {
+            return false;
+        }
+        setNumberType(params.getMinX().getType());
+        int index = -1;
+        for (int i = 0; i < historyList.size() && index < 0; i++) {
+            ListEntry entry = (ListEntry) historyList.get(i);
+            if (params.equals(entry.parameters)) {
+                index = i;
+                params = entry.parameters;
+            }
+        }
+        if (index < 0) {
+            historyList.add(new ListEntry(params));
+            index = historyList.size() - 1;
+        }
+        renderStop();
+        historyIndex = index;
+        fireChange(HISTORY_CHANGED);
+        // The render will find the checkpoint and pick up from there.
+        renderLow(params);
+        return true;
+    } // resumeCheckpoint
+
+    /**
+     * Indicates whether the window showing this set is the active
+     * window. The renders of the active set are given priority over
+     * those of the other sets.
+     *
+     * @param  active  true if active, false otherwise.
+     */
+    public void setActive(boolean active) {
+        RenderExecutor executor = renderClient.getExecutor();
+        if (active) {
+            executor.setFocused(renderClient);
+        } else if (executor.getFocused() == renderClient) {
+            executor.setFocused(null);
+        }
+    } // setActive
+
+    /**
+     * Sets the point of the set on which the user is focused, such as
+     * the center of the last selection. The next render will start
+     * from this point and spiral outward.
+     *
+     * @param  x  x position within the set.
+     * @param  y  y position within the set.
+     */
+    public void setFocus(BenoitNumber x, BenoitNumber y) {
+        focusX = x;
+        focusY = y;
+    } // setFocus
+
+    /**
+     * Sets the length of time the user input must be idle before a
+     * render proceeds from the reduced quality previews to the full
+     * resolution and dwell limit.
+     *
+     * @param  millis  idle time in milliseconds.
+     */
+    public void setIdleDelay(long millis) {
+        idleDelay = millis;
+    } // setIdleDelay
+
+    /**
+     * Indicates whether the window showing this set is minimized. The
+     * renders of a minimized set may be throttled.
+     *
+     * @param  minimized  true if minimized, false otherwise.
+     */
+    public void setMinimized(boolean minimized) {
+        renderClient.setMinimized(minimized);
+    } // setMinimized
+
     /**
      * Sets the numeric precision used by this Set.
      *
@@ -243,13 +616,7 @@ public class DefaultSet extends AbstractSet implements RenderListener {
         if (renderer != null) {
             renderer.removeListener(this);
         }
-        if (type == BenoitNumber.DOUBLE_TYPE) {
-            renderer = new FastDoublesRenderer();
-        } else if (type == BenoitNumber.BIG_TYPE) {
-            renderer = new BigDecimalRenderer();
-        } else {
-            throw new IllegalArgumentException("invalid number type");
-        }
+        renderer = createRenderer(type);
         numericType = type;
         getParameters().setType(type);
         renderer.addListener(this);
@@ -288,6 +655,16 @@ public class DefaultSet extends AbstractSet implements RenderListener {
         imageComponent.setSelection(left, top, right, bottom);
     } // showSelection
 
+    /**
+     * Stops the history prefetch, if it is running.
+     */
+    protected void stopPrefetch() {
+        if (prefetchScope != null) {
+            prefetchScope.close();
+            prefetchScope = null;
+        }
+    } // stopPrefetch
+
     /**
      * Implements a class for displaying and manipulating the parameters
      * of the mandelbrot set. It also acts as a mouse motion listener on
@@ -428,38 +805,345 @@ public class DefaultSet extends AbstractSet implements RenderListener {
     } // Settings
 
     /**
-     * Renders the image by invoking the Renderer.
+     * Renders the image by invoking the Renderer. If the user has
+     * interacted with the set recently, the image is first previewed at
+     * a fraction of the resolution, with as high a dwell limit as the
+     * time until the input is idle allows, then rendered at full
+     * quality once the input has been idle for a while. Each level of
+     * quality reuses the samples computed by the level before it.
+     * The progress of the full quality render is saved periodically
+     * to a checkpoint, which is deleted once the render completes.
+     * When resuming from a checkpoint the previews are skipped. Renders
+     * that take a long time are also saved to the disk cache, so that a
+     * later run of the program can show them again without rendering.
      */
     protected class RenderRunner implements Runnable {
-        /** Image to render to. */
-        private Image image;
+        /** Images to render to and display. */
+        private FrameBuffer frame;
         /** Boundaries of region. */
         private Parameters params;
         /** Renderer to do the rendering. */
         private Renderer renderer;
+        /** Dwell limit for the full quality render. */
+        private int dwellLimit;
+        /** Order in which the tiles are rendered. */
+        private TileOrder order;
+        /** Signals the render to stop. */
+        private CancelToken token;
 
         /**
          * Constructs a RenderRunner.
          *
-         * @param  image     image to render to.
-         * @param  params    boundaries of region.
-         * @param  renderer  object to do the rendering.
+         * @param  frame       images to render to and display.
+         * @param  params      boundaries of region.
+         * @param  renderer    object to do the rendering.
+         * @param  dwellLimit  dwell limit for the full quality render.
+         * @param  order       order in which the tiles are rendered.
+         * @param  token       signals the render to stop.
          */
-        public RenderRunner(Image image, Parameters params,
-                            Renderer renderer) {
-            this.image = image;
+        public RenderRunner(FrameBuffer frame, Parameters params,
+                            Renderer renderer, int dwellLimit,
+                            TileOrder order, CancelToken token) {
+            this.frame = frame;
             this.params = params;
             this.renderer = renderer;
+            this.dwellLimit = dwellLimit;
+            this.order = order;
+            this.token = token;
         } // RenderRunner
 
+        /**
+         * Hands the finished image over to the event thread for
+         * caching. This is done once, when the render has finished,
+         * rather than from the progress events, which report the end of
+         * the last tile as well as the end of the render.
+         *
+         * @param  dwells  dwell data of the finished image.
+         */
+        private void handOver(DwellData dwells) {
+            finishedDwells.set(dwells);
+            finishedImage.set(frame.getFrontImage());
+            EventQueue.invokeLater(new FinishedImageHandler());
+        } // handOver
+
+        /**
+         * Returns the time remaining until the input is considered idle.
+         *
+         * @return  milliseconds until idle, zero or less if idle now.
+         */
+        private long idleRemaining() {
+            return lastInteraction + idleDelay - System.currentTimeMillis();
+        } // idleRemaining
+
+        /**
+         * Renders the best preview that can be had before the input is
+         * idle, refining the steps and then raising the dwell limit of
+         * the job until the time runs out.
+         *
+         * @param  job  preview job, at the finest step and highest dwell
+         *              limit to use.
+         * @return  true if the render should go on, false if cancelled.
+         */
+        private boolean preview(RenderJob job) {
+            if (!(renderer instanceof AbstractRenderer)) {
+                return renderer.render(job);
+            }
+            AnytimeRenderer anytime = new AnytimeRenderer(
+                (AbstractRenderer) renderer);
+            return anytime.renderWithin(
+                job, Math.max(idleRemaining(), PREVIEW_TIME));
+        } // preview
+
         /**
          * Invoke the renderer.
          */
         public void run() {
-            renderer.render(image, params);
+            Image back = frame.getBackImage();
+            int width = back.getWidth(null);
+            int height = back.getHeight(null);
+            Checkpoint resume = findCheckpoint(params, width, height,
+                                               dwellLimit);
+            SharedRenderCache shared = SharedRenderCache.getDefault();
+            String key = SharedRenderCache.createKey(
+                params, width, height, dwellLimit);
+            // Another window, or an earlier run of the program, may have
+            // rendered this region already.
+            DwellData done = null;
+            if (resume == null) {
+                done = shared.get(key);
+                if (done == null) {
+                    done = DiskRenderCache.getDefault().get(key);
+                }
+            }
+            DwellData samples;
+            Checkpoint checkpoint;
+            if (resume != null) {
+                samples = resume.getSamples();
+                checkpoint = resume;
+            } else {
+                samples = new DwellData(width, height);
+                checkpoint = new Checkpoint(
+                    getCheckpointFile(), params, dwellLimit, samples);
+            }
+            checkpoint.setInterval(CHECKPOINT_INTERVAL);
+            int base = 0;
+            if (done == null && resume == null && idleRemaining() > 0) {
+                RenderJob job = new RenderJob(frame, params, dwellLimit);
+                job.setStep(PREVIEW_STEP);
+                job.setPreview(true);
+                job.setSamples(samples);
+                job.setTileOrder(order);
+                job.setCancelToken(token);
+                job.setClient(renderClient);
+                job.setProgress(0, PREVIEW_PROGRESS);
+                if (!preview(job)) {
+                    return;
+                }
+                base = PREVIEW_PROGRESS;
+                // Wait for the user to stop before rendering in full.
+                long wait = idleRemaining();
+                while (wait > 0) {
+                    if (!token.sleep(wait)) {
+                        return;
+                    }
+                    wait = idleRemaining();
+                }
+            }
+            // If another window is rendering this region, wait for it
+            // to finish rather than computing the same points again.
+            while (done == null && !shared.claim(key)) {
+                if (!shared.await(key, token)) {
+                    return;
+                }
+                done = shared.get(key);
+            }
+            RenderJob job = new RenderJob(frame, params, dwellLimit);
+            job.setTileOrder(order);
+            job.setCancelToken(token);
+            job.setClient(renderClient);
+            job.setProgress(base, 100 - base);
+            if (done != null) {
+                // Only drawing remains to be done.
+                job.setSamples(done);
+                if (renderer.render(job)) {
+                    handOver(done);
+                }
+                return;
+            }
+            job.setSamples(samples);
+            job.setCheckpoint(checkpoint);
+            job.setTileCache(TileCache.getDefault());
+            boolean finished = false;
+            long start = System.currentTimeMillis();
+            try {
+                finished = renderer.render(job);
+            } finally {
+                if (finished) {
+                    checkpoint.delete();
+                    shared.put(key, samples);
+                    if (resume != null || System.currentTimeMillis() - start
+                        >= DISK_THRESHOLD) {
+                        DiskRenderCache.getDefault().put(key, samples);
+                    }
+                } else {
+                    shared.release(key);
+                }
+            }
+            if (finished) {
+                handOver(samples);
+            }
         } // run
     } // RenderRunner
 
+    /**
+     * Renders history entries in the background and saves them in the
+     * history cache. The renders go to images of their own, using a
+     * renderer of their own, so they never show in the view.
+     */
+    protected class PrefetchRunner implements Runnable {
+        /** History entries to render, nearest first. */
+        private List entries;
+        /** Signals the prefetch to stop. */
+        private CancelToken token;
+
+        /**
+         * Constructs a PrefetchRunner.
+         *
+         * @param  entries  history entries to render.
+         * @param  token    signals the prefetch to stop.
+         */
+        public PrefetchRunner(List entries, CancelToken token) {
+            this.entries = entries;
+            this.token = token;
+        } // PrefetchRunner
+
+        /**
+         * Renders each of the entries in turn.
+         */
+        public void run() {
+            for (int i = 0; i < entries.size(); i++) {
+                ListEntry entry = (ListEntry) entries.get(i);
+                Parameters params = entry.parameters;
+                Renderer r = createRenderer(params.getMinX().getType());
+                RenderJob job = new RenderJob(newImage(), params, dwellLimit);
+                job.setCancelToken(token);
+                job.setClient(prefetchClient);
+                job.setTileCache(TileCache.getDefault());
+                if (!r.render(job)) {
+                    return;
+                }
+                EventQueue.invokeLater(new PrefetchHandler(
+                    entry, job.getImage(), job.getSamples(), token));
+            }
+        } // run
+    } // PrefetchRunner
+
+    /**
+     * Saves a prefetched history entry in the history cache, if the
+     * entry is still in the history. Runs on the event dispatch thread.
+     */
+    protected class PrefetchHandler implements Runnable {
+        /** The history entry that was rendered. */
+        private ListEntry entry;
+        /** Rendered image. */
+        private Image done;
+        /** Dwell data of the image. */
+        private DwellData dwells;
+        /** Signals the prefetch has stopped. */
+        private CancelToken token;
+
+        /**
+         * Constructs a PrefetchHandler.
+         *
+         * @param  entry   the history entry that was rendered.
+         * @param  done    rendered image.
+         * @param  dwells  dwell data of the image.
+         * @param  token   signals the prefetch has stopped.
+         */
+        public PrefetchHandler(ListEntry entry, Image done, DwellData dwells,
+                               CancelToken token) {
+            this.entry = entry;
+            this.done = done;
+            this.dwells = dwells;
+            this.token = token;
+        } // PrefetchHandler
+
+        /**
+         * Caches the prefetched image.
+         */
+        public void run() {
+            if (!token.isCancelled() && historyList.contains(entry)) {
+                historyCache.put(entry, done, dwells);
+            }
+        } // run
+    } // PrefetchHandler
+
+    /**
+     * Takes the image handed over by the render thread when a render
+     * finishes, and saves it and its dwell data in the history cache if
+     * it is still the image being shown. Runs on the event dispatch
+     * thread, and does nothing if the set was closed in the meantime.
+     */
+    protected class FinishedImageHandler implements Runnable {
+
+        /**
+         * Caches the finished image.
+         */
+        public void run() {
+            Image done = (Image) finishedImage.getAndSet(null);
+            DwellData dwells = (DwellData) finishedDwells.getAndSet(null);
+            if (setScope.isClosed()) {
+                return;
+            }
+            if (done != null && done == image) {
+                imageComponent.setCursor(crossHairCursor);
+                cacheImage(done, dwells);
+                prefetchHistory();
+            }
+        } // run
+    } // FinishedImageHandler
+
+    /**
+     * Repaints the portion of the image that changed since the last
+     * repaint. Runs on the event dispatch thread.
+     */
+    protected class DirtyRegionPainter implements ActionListener {
+
+        /**
+         * Invoked when the repaint timer fires.
+         *
+         * @param  e  action event.
+         */
+        public void actionPerformed(ActionEvent e) {
+            Rectangle region;
+            synchronized (repaintTimer) {
+                region = dirtyRegion;
+                dirtyRegion = null;
+            }
+            if (region != null) {
+                imageComponent.repaint(region.x, region.y, region.width,
+                                       region.height);
+            }
+        } // actionPerformed
+    } // DirtyRegionPainter
+
+    /**
+     * Keeps the visible region up to date as the user scrolls, so the
+     * renderer can change the order of the remaining work.
+     */
+    protected class ViewportTracker implements ChangeListener {
+
+        /**
+         * Invoked when the viewport has changed.
+         *
+         * @param  e  change event.
+         */
+        public void stateChanged(ChangeEvent e) {
+            JViewport viewport = (JViewport) e.getSource();
+            visibleRegion.setBounds(viewport.getViewRect());
+        } // stateChanged
+    } // ViewportTracker
+
     /**
      * The JComponent that holds the rendered image.
      */
@@ -663,7 +1347,10 @@ public class DefaultSet extends AbstractSet implements RenderListener {
          */
         public void paint(Graphics g) {
             super.paint(g);
-            g.drawImage(image, 0, 0, this);
+            // Renderers publish to the image while holding its lock.
+            synchronized (image) {
+                g.drawImage(image, 0, 0, this);
+            }
             // Draw a bounding rectangle to show what is selected.
             if (selectionRight > 0) {
                 Graphics2D g2 = (Graphics2D) g;
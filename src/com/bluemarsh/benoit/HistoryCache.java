@@ -0,0 +1,580 @@
+/*********************************************************************
+ *
+ *      Copyright (C) 2002-2014 Nathan Fiedler
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * $Id$
+ *
+ ********************************************************************/
+
+package com.bluemarsh.benoit;
+
+import com.bluemarsh.benoit.render.DwellCodec;
+import com.bluemarsh.benoit.render.DwellData;
+import com.bluemarsh.benoit.render.RenderExecutor;
+import java.awt.EventQueue;
+import java.awt.Image;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Caches the rendered images of the history entries of a set, within a
+ * budget of memory. For each entry both the image and its dwell data
+ * may be kept; an image can be recreated from its dwell data far faster
+ * than the region can be rendered again. The dwell data is packed by
+ * the {@link DwellCodec}, typically to a few percent of the size of the
+ * image, so that hundreds of entries fit where only a few images would.
+ * When the cache exceeds its budget, the least recently used entries
+ * first give up their images, keeping only their dwell data, and then
+ * are dropped altogether. Entries restored from a saved session hold
+ * only the place of their dwell data in the session file until used.
+ *
+ * <p>Packing the dwell data and recreating an image from it both take
+ * long enough to be felt on the event thread, so both are done by a
+ * client of the render executor, on the threads that render. Until
+ * its dwell data is packed, an entry counts the unpacked data against
+ * the budget. Dwell data that cannot be unpacked, such as
+ * from a damaged session file, counts as a miss and the entry is
+ * dropped, so that the region is rendered again.</p>
+ *
+ * @author  Nathan Fiedler
+ */
+public class HistoryCache {
+    /** Bytes of memory used for each pixel of an image. */
+    private static final int BYTES_PER_PIXEL = 4;
+    /** Bytes of memory used for each dwell of unpacked dwell data. */
+    private static final int BYTES_PER_DWELL = 4;
+    /** Cached entries, from least to most recently used. */
+    private Map entries;
+    /** Most bytes the cache may hold. */
+    private long budget;
+    /** Bytes presently held. */
+    private long size;
+    /** Number of lookups that found an image or dwell data. */
+    private int hits;
+    /** Number of lookups that found nothing. */
+    private int misses;
+    /** Number of entries dropped to stay within the budget. */
+    private int evictions;
+    /** Number of images dropped in favor of their dwell data. */
+    private int demotions;
+    /** Runs the packing and recreating in the background. */
+    private RenderExecutor.Client worker;
+
+    /**
+     * Constructs a HistoryCache.
+     *
+     * @param  budget  most bytes the cache may hold.
+     */
+    public HistoryCache(long budget) {
+        this.budget = budget;
+        entries = new LinkedHashMap(16, 0.75f, true);
+        worker = RenderExecutor.getDefault().createClient("history");
+    } // HistoryCache
+
+    /**
+     * Returns the default budget, which is given by the
+     * <code>benoit.history.budget</code> property in bytes, or else a
+     * quarter of the memory available to the program, at most 64 MB.
+     *
+     * @return  budget in bytes.
+     */
+    public static long getDefaultBudget() {
+        long max = Math.min(64L * 1024 * 1024,
+                            Runtime.getRuntime().maxMemory() / 4);
+        return Long.getLong("benoit.history.budget", max).longValue();
+    } // getDefaultBudget
+
+    /**
+     * Removes all of the entries from the cache.
+     */
+    public synchronized void clear() {
+        Iterator iter = entries.values().iterator();
+        while (iter.hasNext()) {
+            ((Entry) iter.next()).dropped = true;
+        }
+        entries.clear();
+        size = 0;
+    } // clear
+
+    /**
+     * Indicates if anything is cached for the given key. This does not
+     * count as a use of the entry.
+     *
+     * @param  key  key of the entry.
+     * @return  true if cached, false otherwise.
+     */
+    public synchronized boolean contains(Object key) {
+        return entries.containsKey(key);
+    } // contains
+
+    /**
+     * Returns the budget of the cache.
+     *
+     * @return  most bytes the cache may hold.
+     */
+    public synchronized long getBudget() {
+        return budget;
+    } // getBudget
+
+    /**
+     * Returns the dwell data cached for the given key.
+     *
+     * @param  key  key of the entry.
+     * @return  dwell data, or null if none.
+     */
+    public synchronized DwellData getDwells(Object key) {
+        Entry entry = (Entry) entries.get(key);
+        if (entry != null && entry.unpacked != null) {
+            return entry.unpacked;
+        }
+        byte[] packed = getPacked(key);
+        if (packed == null) {
+            return null;
+        }
+        DwellData data = unpack(packed);
+        if (data == null) {
+            remove(key);
+        }
+        return data;
+    } // getDwells
+
+    /**
+     * Returns the number of entries dropped to stay within the budget.
+     *
+     * @return  eviction count.
+     */
+    public synchronized int getEvictionCount() {
+        return evictions;
+    } // getEvictionCount
+
+    /**
+     * Returns the number of images dropped in favor of their dwell data.
+     *
+     * @return  demotion count.
+     */
+    public synchronized int getDemotionCount() {
+        return demotions;
+    } // getDemotionCount
+
+    /**
+     * Returns the number of lookups that found an image or dwell data.
+     *
+     * @return  hit count.
+     */
+    public synchronized int getHitCount() {
+        return hits;
+    } // getHitCount
+
+    /**
+     * Returns the image cached for the given key, if the image itself
+     * is held. An entry that holds only its dwell data has its image
+     * recreated by <code>recreateImage()</code>.
+     *
+     * @param  key  key of the entry.
+     * @return  cached image, or null if none.
+     */
+    public synchronized Image getImage(Object key) {
+        Entry entry = (Entry) entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        if (entry.image == null) {
+            return null;
+        }
+        hits++;
+        return entry.image;
+    } // getImage
+
+    /**
+     * Returns the dwell data cached for the given key in the form in
+     * which it is held: packed, as a byte array; waiting to be packed,
+     * as DwellData; or not yet read from the saved session, as a
+     * Payload. Turning it into packed data takes a while, so that is
+     * left to <code>toPacked()</code>, which may be called on another
+     * thread. This does not count as a use of the entry.
+     *
+     * @param  key  key of the entry.
+     * @return  dwell data as held, or null if none.
+     */
+    public synchronized Object getHeld(Object key) {
+        Entry entry = (Entry) entries.get(key);
+        if (entry == null) {
+            return null;
+        } else if (entry.dwells != null) {
+            return entry.dwells;
+        } else if (entry.unpacked != null) {
+            return entry.unpacked;
+        }
+        return entry.stored;
+    } // getHeld
+
+    /**
+     * Returns the number of lookups that found nothing.
+     *
+     * @return  miss count.
+     */
+    public synchronized int getMissCount() {
+        return misses;
+    } // getMissCount
+
+    /**
+     * Returns the packed dwell data cached for the given key, reading
+     * it from the saved session if necessary.
+     *
+     * @param  key  key of the entry.
+     * @return  packed dwell data, or null if none.
+     */
+    public synchronized byte[] getPacked(Object key) {
+        Entry entry = (Entry) entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.unpacked != null) {
+            // Wanted before the worker got to it.
+            setPacked(entry, DwellCodec.encode(entry.unpacked, true));
+        }
+        try {
+            loadStored(entry);
+        } catch (IOException ioe) {
+            remove(key);
+            return null;
+        }
+        return entry.dwells;
+    } // getPacked
+
+    /**
+     * Returns the number of bytes held by the cache.
+     *
+     * @return  size in bytes.
+     */
+    public synchronized long getSize() {
+        return size;
+    } // getSize
+
+    /**
+     * Returns the number of bytes used by the given image.
+     *
+     * @param  image  image to measure.
+     * @return  size in bytes.
+     */
+    private static long imageSize(Image image) {
+        return (long) image.getWidth(null) * image.getHeight(null)
+            * BYTES_PER_PIXEL;
+    } // imageSize
+
+    /**
+     * Reads the dwell data of the given entry from the saved session,
+     * if it has not been read yet.
+     *
+     * @param  entry  cache entry.
+     * @throws  IOException
+     *          if the data could not be read.
+     */
+    private void loadStored(Entry entry) throws IOException {
+        if (entry.dwells == null && entry.stored != null) {
+            entry.dwells = entry.stored.read();
+            entry.stored = null;
+            size += entry.dwells.length;
+        }
+    } // loadStored
+
+    /**
+     * Packs the dwell data of the given entry.
+     *
+     * @param  entry  cache entry.
+     */
+    private void pack(Entry entry) {
+        DwellData data;
+        synchronized (this) {
+            data = entry.unpacked;
+        }
+        if (data == null) {
+            return;
+        }
+        byte[] packed = DwellCodec.encode(data, true);
+        synchronized (this) {
+            if (entry.unpacked == data) {
+                setPacked(entry, packed);
+                trim(null);
+            }
+        }
+    } // pack
+
+    /**
+     * Caches the image and dwell data for the given key, replacing any
+     * already cached. The dwell data is packed in the background.
+     *
+     * @param  key     key of the entry.
+     * @param  image   rendered image, must not be null.
+     * @param  dwells  dwell data of the image, may be null.
+     */
+    public synchronized void put(Object key, Image image, DwellData dwells) {
+        remove(key);
+        final Entry entry = new Entry();
+        entry.image = image;
+        entry.unpacked = dwells;
+        size += entry.getSize();
+        entries.put(key, entry);
+        trim(entry);
+        if (dwells != null) {
+            worker.submit(new Runnable() {
+                public void run() {
+                    pack(entry);
+                }
+            });
+        }
+    } // put
+
+    /**
+     * Caches, for the given key, the dwell data saved in a session. The
+     * data is read from the session file when the entry is first used.
+     *
+     * @param  key      key of the entry.
+     * @param  payload  dwell data in the session file.
+     */
+    public synchronized void putStored(Object key,
+                                       HistorySession.Payload payload) {
+        remove(key);
+        Entry entry = new Entry();
+        entry.stored = payload;
+        entries.put(key, entry);
+    } // putStored
+
+    /**
+     * Recreates, in the background, the image for the given key from
+     * its dwell data, reading the data from the saved session first if
+     * necessary. When done, whether or not the image could be
+     * recreated, the handler is run on the event dispatch thread; it
+     * finds the image with <code>getImage()</code>.
+     *
+     * @param  key      key of the entry.
+     * @param  handler  run when done.
+     */
+    public void recreateImage(final Object key, final Runnable handler) {
+        worker.submit(new Runnable() {
+            public void run() {
+                try {
+                    recreate(key);
+                } finally {
+                    EventQueue.invokeLater(handler);
+                }
+            }
+        });
+    } // recreateImage
+
+    /**
+     * Recreates the image for the given key from its dwell data, unless
+     * the image is already held.
+     *
+     * @param  key  key of the entry.
+     */
+    private void recreate(Object key) {
+        Entry entry;
+        byte[] packed;
+        DwellData data;
+        synchronized (this) {
+            entry = (Entry) entries.get(key);
+            if (entry == null || entry.image != null) {
+                return;
+            }
+            try {
+                loadStored(entry);
+            } catch (IOException ioe) {
+                remove(key);
+                misses++;
+                return;
+            }
+            packed = entry.dwells;
+            data = entry.unpacked;
+        }
+        if (data == null && packed != null) {
+            data = unpack(packed);
+        }
+        Image image = data == null ? null : data.createImage();
+        synchronized (this) {
+            if (entry.dropped || entry.image != null) {
+                return;
+            }
+            if (image == null) {
+                // Damaged or missing, render again instead.
+                remove(key);
+                misses++;
+                return;
+            }
+            entry.image = image;
+            size += imageSize(image);
+            trim(entry);
+        }
+    } // recreate
+
+    /**
+     * Removes the entry for the given key from the cache.
+     *
+     * @param  key  key of the entry.
+     */
+    public synchronized void remove(Object key) {
+        Entry entry = (Entry) entries.remove(key);
+        if (entry != null) {
+            entry.dropped = true;
+            size -= entry.getSize();
+        }
+    } // remove
+
+    /**
+     * Sets the budget of the cache, dropping entries as needed.
+     *
+     * @param  budget  most bytes the cache may hold.
+     */
+    public synchronized void setBudget(long budget) {
+        this.budget = budget;
+        trim(null);
+    } // setBudget
+
+    /**
+     * Gives the given entry its packed dwell data, in place of the
+     * dwell data waiting to be packed.
+     *
+     * @param  entry   cache entry.
+     * @param  packed  packed dwell data.
+     */
+    private void setPacked(Entry entry, byte[] packed) {
+        long before = entry.getSize();
+        entry.unpacked = null;
+        entry.dwells = packed;
+        if (!entry.dropped) {
+            size += entry.getSize() - before;
+        }
+    } // setPacked
+
+    /**
+     * Returns the packed form of dwell data returned by
+     * <code>getHeld()</code>.
+     *
+     * @param  held  dwell data as held by the cache, may be null.
+     * @return  packed dwell data, or null if none or it could not be
+     *          read from the saved session.
+     */
+    public static byte[] toPacked(Object held) {
+        if (held instanceof DwellData) {
+            return DwellCodec.encode((DwellData) held, true);
+        } else if (held instanceof HistorySession.Payload) {
+            try {
+                return ((HistorySession.Payload) held).read();
+            } catch (IOException ioe) {
+                return null;
+            }
+        }
+        return (byte[]) held;
+    } // toPacked
+
+    /**
+     * Returns a summary of the cache usage.
+     *
+     * @return  summary string.
+     */
+    public synchronized String toString() {
+        return "HistoryCache=[entries=" + entries.size() + ", size=" + size
+            + ", budget=" + budget + ", hits=" + hits + ", misses=" + misses
+            + ", demotions=" + demotions + ", evictions=" + evictions + "]";
+    } // toString
+
+    /**
+     * Drops images, and then whole entries, from the least recently
+     * used end of the cache until it is within budget. The given entry
+     * is spared so that the entry just used is not lost.
+     *
+     * @param  keep  entry to keep, may be null.
+     */
+    private void trim(Entry keep) {
+        Iterator iter = entries.values().iterator();
+        while (size > budget && iter.hasNext()) {
+            Entry entry = (Entry) iter.next();
+            if (entry != keep && entry.image != null
+                && entry.dwells != null) {
+                size -= imageSize(entry.image);
+                entry.image = null;
+                demotions++;
+            }
+        }
+        iter = entries.values().iterator();
+        while (size > budget && iter.hasNext()) {
+            Entry entry = (Entry) iter.next();
+            if (entry != keep && entry.getSize() > 0) {
+                size -= entry.getSize();
+                entry.dropped = true;
+                iter.remove();
+                evictions++;
+            }
+        }
+    } // trim
+
+    /**
+     * Unpacks the given dwell data, provided its image would fit in
+     * the budget of the cache.
+     *
+     * @param  packed  packed dwell data.
+     * @return  dwell data, or null if the data is not valid.
+     */
+    private DwellData unpack(byte[] packed) {
+        try {
+            return DwellCodec.decode(packed, getBudget() / BYTES_PER_PIXEL);
+        } catch (IOException ioe) {
+            return null;
+        } catch (RuntimeException re) {
+            return null;
+        }
+    } // unpack
+
+    /**
+     * The image and dwell data of one history entry.
+     */
+    protected static class Entry {
+        /** Rendered image, may be null. */
+        public Image image;
+        /** Packed dwell data of the image, may be null. */
+        public byte[] dwells;
+        /** Dwell data not yet read from the saved session, may be null. */
+        public HistorySession.Payload stored;
+        /** Dwell data not yet packed, may be null. */
+        public DwellData unpacked;
+        /** True once the entry has left the cache. */
+        public boolean dropped;
+
+        /**
+         * Returns the number of bytes held by this entry.
+         *
+         * @return  size in bytes.
+         */
+        public long getSize() {
+            long n = 0;
+            if (image != null) {
+                n += imageSize(image);
+            }
+            if (dwells != null) {
+                n += dwells.length;
+            }
+            if (unpacked != null) {
+                n += (long) unpacked.getWidth() * unpacked.getHeight()
+                    * BYTES_PER_DWELL;
+            }
+            return n;
+        } // getSize
+    } // Entry
+} // HistoryCache
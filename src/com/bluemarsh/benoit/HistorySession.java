@@ -0,0 +1,304 @@
+/*********************************************************************
+ *
+ *      Copyright (C) 2002-2014 Nathan Fiedler
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * $Id$
+ *
+ ********************************************************************/
+
+package com.bluemarsh.benoit;
+
+import com.bluemarsh.benoit.model.BenoitNumber;
+import com.bluemarsh.benoit.model.Parameters;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.WeakHashMap;
+
+/**
+ * Saves the history of a set to a file, and restores it again, so that
+ * a session of exploring the set may be picked up where it was left.
+ * For each history entry the file holds the region boundaries, number
+ * type and scale, and the packed dwell data of the rendered image, if
+ * any. The dwell data comes after an index of the entries, and is read
+ * only when an entry is shown, so restoring even a long session is
+ * quick.
+ *
+ * <p>All of the windows save their sessions to the same file. Before a
+ * save replaces the file, the dwell data of every payload that has yet
+ * to be read from it is read into memory, so the history of another
+ * window restored from that file keeps its renders.</p>
+ *
+ * @author  Nathan Fiedler
+ */
+public class HistorySession {
+    /** Identifies a session file. */
+    private static final int MAGIC = 0x42534553;
+    /** Version of the session file format. */
+    private static final int VERSION = 1;
+    /** Offset of the session identifier in the file. */
+    private static final long ID_OFFSET = 8;
+    /** Fewest bytes an entry takes up in the index of the file. */
+    private static final int MIN_ENTRY_SIZE = 20;
+    /** Payloads not yet read from their files (keys of a weak map). */
+    private static Map unread = new WeakHashMap();
+    /** File to which the session is saved. */
+    private File file;
+
+    /**
+     * Constructs a HistorySession.
+     *
+     * @param  file  file to which the session is saved.
+     */
+    public HistorySession(File file) {
+        this.file = file;
+    } // HistorySession
+
+    /**
+     * Reads into memory the data of each payload that has not yet been
+     * read from the given file, as the file is about to be replaced.
+     *
+     * @param  target  file about to be replaced.
+     */
+    private static void detach(File target) {
+        synchronized (unread) {
+            List payloads = new ArrayList(unread.keySet());
+            for (int i = 0; i < payloads.size(); i++) {
+                Payload payload = (Payload) payloads.get(i);
+                if (payload.getFile().equals(target)) {
+                    try {
+                        payload.read();
+                    } catch (IOException ioe) {
+                        // Already unusable, leave it to fail later.
+                        unread.remove(payload);
+                    }
+                }
+            }
+        }
+    } // detach
+
+    /**
+     * Returns the file in which the session is normally saved.
+     *
+     * @return  session file.
+     */
+    public static File getDefaultFile() {
+        File dir = new File(System.getProperty("user.home"), ".benoit");
+        return new File(dir, "session.bin");
+    } // getDefaultFile
+
+    /**
+     * Reads the index of the session. The dwell data is not read;
+     * instead a payload is given for each entry that has any, from
+     * which the data may be read later.
+     *
+     * @param  params    receives the Parameters of each entry.
+     * @param  payloads  receives the Payload of each entry, or null if
+     *                   the entry has no dwell data.
+     * @return  index of the current entry, or -1 if no session was saved.
+     * @throws  IOException
+     *          if the file could not be read or is not a session.
+     */
+    public int load(List params, List payloads) throws IOException {
+        if (!file.exists()) {
+            return -1;
+        }
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("not a session file: " + file);
+            }
+            long id = in.readLong();
+            int count = in.readInt();
+            int index = in.readInt();
+            // Guard against a damaged file before allocating for it.
+            long left = in.length() - in.getFilePointer();
+            if (count < 0 || count > left / MIN_ENTRY_SIZE
+                || (count > 0 && (index < 0 || index >= count))) {
+                throw new IOException("corrupt session file: " + file);
+            }
+            int[] lengths = new int[count];
+            for (int i = 0; i < count; i++) {
+                int type = in.readInt();
+                int scale = in.readInt();
+                BenoitNumber minX = BenoitNumber.valueOf(in.readUTF(), type);
+                BenoitNumber maxX = BenoitNumber.valueOf(in.readUTF(), type);
+                BenoitNumber minY = BenoitNumber.valueOf(in.readUTF(), type);
+                BenoitNumber maxY = BenoitNumber.valueOf(in.readUTF(), type);
+                Parameters p = new Parameters(minX, maxX, minY, maxY);
+                p.setScale(scale);
+                params.add(p);
+                lengths[i] = in.readInt();
+                if (lengths[i] < -1) {
+                    throw new IOException("corrupt session file: " + file);
+                }
+            }
+            long offset = in.getFilePointer();
+            for (int i = 0; i < count; i++) {
+                if (lengths[i] < 0) {
+                    payloads.add(null);
+                } else {
+                    payloads.add(new Payload(id, offset, lengths[i]));
+                    offset += lengths[i];
+                }
+            }
+            if (offset > in.length()) {
+                throw new IOException("session file truncated: " + file);
+            }
+            return index;
+        } catch (RuntimeException re) {
+            // The numbers of a damaged file fail to parse in many ways.
+            throw new IOException("corrupt session file: " + file);
+        } finally {
+            in.close();
+        }
+    } // load
+
+    /**
+     * Saves the session, replacing any saved before. The file is
+     * written in full before it replaces the old one.
+     *
+     * @param  params    Parameters of each entry.
+     * @param  payloads  packed dwell data (byte arrays) of each entry,
+     *                   or null for entries without any.
+     * @param  index     index of the current entry.
+     * @throws  IOException
+     *          if the file could not be written.
+     */
+    public void save(List params, List payloads, int index)
+        throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.exists()) {
+            dir.mkdirs();
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(new Random().nextLong());
+            out.writeInt(params.size());
+            out.writeInt(index);
+            for (int i = 0; i < params.size(); i++) {
+                Parameters p = (Parameters) params.get(i);
+                byte[] packed = (byte[]) payloads.get(i);
+                out.writeInt(p.getMinX().getType());
+                out.writeInt(p.getScale());
+                out.writeUTF(p.getMinX().toString());
+                out.writeUTF(p.getMaxX().toString());
+                out.writeUTF(p.getMinY().toString());
+                out.writeUTF(p.getMaxY().toString());
+                out.writeInt(packed == null ? -1 : packed.length);
+            }
+            for (int i = 0; i < payloads.size(); i++) {
+                byte[] packed = (byte[]) payloads.get(i);
+                if (packed != null) {
+                    out.write(packed);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        detach(file.getAbsoluteFile());
+        if (file.exists() && !file.delete()) {
+            throw new IOException("could not replace " + file);
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("could not rename " + tmp);
+        }
+    } // save
+
+    /**
+     * The packed dwell data of one entry of a saved session, which is
+     * read from the file when needed.
+     */
+    public class Payload {
+        /** Identifies the session that was loaded. */
+        private long id;
+        /** Offset of the data in the file. */
+        private long offset;
+        /** Length of the data, in bytes. */
+        private int length;
+        /** The data, once read from the file. */
+        private byte[] data;
+
+        /**
+         * Constructs a Payload.
+         *
+         * @param  id      identifies the session that was loaded.
+         * @param  offset  offset of the data in the file.
+         * @param  length  length of the data.
+         */
+        Payload(long id, long offset, int length) {
+            this.id = id;
+            this.offset = offset;
+            this.length = length;
+            synchronized (unread) {
+                unread.put(this, Boolean.TRUE);
+            }
+        } // Payload
+
+        /**
+         * Returns the file holding the data.
+         *
+         * @return  session file.
+         */
+        File getFile() {
+            return file.getAbsoluteFile();
+        } // getFile
+
+        /**
+         * Reads the packed dwell data from the file, unless it was
+         * read already.
+         *
+         * @return  packed dwell data.
+         * @throws  IOException
+         *          if the file could not be read, or has since been
+         *          replaced by another session.
+         */
+        public byte[] read() throws IOException {
+            synchronized (unread) {
+                if (data == null) {
+                    RandomAccessFile in = new RandomAccessFile(file, "r");
+                    try {
+                        in.seek(ID_OFFSET);
+                        if (in.readLong() != id) {
+                            throw new IOException(
+                                "session file replaced: " + file);
+                        }
+                        byte[] bytes = new byte[length];
+                        in.seek(offset);
+                        in.readFully(bytes);
+                        data = bytes;
+                    } finally {
+                        in.close();
+                    }
+                    unread.remove(this);
+                }
+                return data;
+            }
+        } // read
+    } // Payload
+} // HistorySession
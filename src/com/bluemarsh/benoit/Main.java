@@ -23,6 +23,9 @@
 package com.bluemarsh.benoit;
 
 import com.bluemarsh.benoit.model.BenoitNumber;
+import com.bluemarsh.benoit.render.Calibration;
+import com.bluemarsh.benoit.render.RenderScope;
+import com.bluemarsh.benoit.render.Tuning;
 import com.bluemarsh.benoit.ui.HistoryAdapter;
 import com.bluemarsh.benoit.ui.MainWindow;
 import com.bluemarsh.benoit.ui.PositionTracker;
@@ -33,7 +36,12 @@ import java.awt.BorderLayout;
 import java.awt.Container;
 import java.awt.EventQueue;
 import java.awt.Frame;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.IOException;
 import java.util.Vector;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.swing.JComponent;
 
 /**
@@ -42,12 +50,19 @@ import javax.swing.JComponent;
  * @author  Nathan Fiedler
  */
 public class Main {
+    /** Logger. */
+    private static Logger logger = Logger.getLogger("com.bluemarsh.benoit");
     /** List of the open Sets. */
     private static Vector openSets = new Vector();
+    /** Thread saving the session of the set closed last, may be null. */
+    private static Thread sessionSaver;
 
     /**
      * Closes the Set associated with the given frame and destroys
-     * its user interface.
+     * its user interface. The history of the set is saved in the
+     * background, replacing the session saved by any set closed
+     * before it, so the session restored at the next launch is that
+     * of the set closed last.
      *
      * @param  frame  window associated with set.
      */
@@ -56,15 +71,51 @@ public class Main {
         if (set == null) {
             throw new IllegalArgumentException("frame not mapped to set");
         }
+        Runnable saver = set.createSessionSaver(
+            HistorySession.getDefaultFile());
+        if (saver != null) {
+            saveSession(saver);
+        }
         set.close();
         openSets.remove(set);
         frame.dispose();
         if (openSets.size() == 0) {
-            // No more open sets, time to leave.
+            // No more open sets, time to leave, once the session is saved.
+            if (sessionSaver != null) {
+                try {
+                    sessionSaver.join();
+                } catch (InterruptedException ie) {
+                    // Leave without it.
+                }
+            }
             System.exit(0);
         }
     }
 
+    /**
+     * Runs the given session saver on a thread of its own, after any
+     * saver started before it has finished, so that the sessions are
+     * written in the order in which their sets were closed.
+     *
+     * @param  saver  saves the session of a set.
+     */
+    private static void saveSession(final Runnable saver) {
+        final Thread previous = sessionSaver;
+        sessionSaver = RenderScope.newThread(new Runnable() {
+            public void run() {
+                if (previous != null) {
+                    try {
+                        previous.join();
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+                saver.run();
+            }
+        }, "session-save");
+        sessionSaver.start();
+    }
+
     /**
      * Main method for Benoit program.
      *
@@ -72,7 +123,41 @@ public class Main {
      */
     public static void main(String[] args) {
         // Start the program by creating a Set.
-        newSet();
+        final Set set = newSet();
+        // Pick up where the last session and render left off.
+        final Runnable restore = new Runnable() {
+            public void run() {
+                try {
+                    set.restoreSession(HistorySession.getDefaultFile());
+                } catch (IOException ioe) {
+                    logger.warning("could not restore session: " + ioe);
+                } catch (RuntimeException re) {
+                    // Whatever went wrong, the render may still resume.
+                    logger.log(Level.WARNING, "could not restore session",
+                               re);
+                }
+                set.resumeCheckpoint();
+            }
+        };
+        if (Tuning.getDefault().isTuned()) {
+            EventQueue.invokeLater(restore);
+        } else {
+            // Tune the render settings on first launch, or if the machine
+            // has changed since they were tuned, before rendering starts
+            // so that nothing else competes with the timings.
+            RenderScope.newThread(new Runnable() {
+                public void run() {
+                    Calibration cal = new Calibration(Tuning.getDefault());
+                    try {
+                        logger.info("render tuning:\n" + cal.run());
+                    } catch (IOException ioe) {
+                        logger.warning("could not save tuning: " + ioe);
+                    } finally {
+                        EventQueue.invokeLater(restore);
+                    }
+                }
+            }, "calibration").start();
+        }
     }
 
     /**
@@ -82,7 +167,7 @@ public class Main {
      */
     public static Set newSet() {
         // Construct the Set and MainWindow.
-        Set set = new DefaultSet();
+        final Set set = new DefaultSet();
         final MainWindow mainWindow = new MainWindow();
 
         // Add the mappings.
@@ -104,6 +189,23 @@ public class Main {
         set.setNumberType(BenoitNumber.DOUBLE_TYPE);
         HistoryAdapter ha = new HistoryAdapter(mainWindow);
         set.addListener(ha);
+        mainWindow.addWindowListener(new WindowAdapter() {
+            public void windowActivated(WindowEvent e) {
+                set.setActive(true);
+            }
+
+            public void windowDeactivated(WindowEvent e) {
+                set.setActive(false);
+            }
+
+            public void windowDeiconified(WindowEvent e) {
+                set.setMinimized(false);
+            }
+
+            public void windowIconified(WindowEvent e) {
+                set.setMinimized(true);
+            }
+        });
 
         // Initialize and display.
         EventQueue.invokeLater(new Runnable() {
@@ -22,9 +22,12 @@
 
 package com.bluemarsh.benoit;
 
+import com.bluemarsh.benoit.model.BenoitNumber;
 import com.bluemarsh.benoit.model.Parameters;
 import com.bluemarsh.benoit.render.Renderer;
 import java.awt.Image;
+import java.io.File;
+import java.io.IOException;
 import javax.swing.JComponent;
 
 /**
@@ -116,6 +119,13 @@ public interface Set {
      */
     void historyPrev();
 
+    /**
+     * Notes that the user is interacting with the set, such as by
+     * dragging a selection. Renders started during an interaction, or
+     * shortly after one, are first drawn at reduced quality.
+     */
+    void markInteraction();
+
     /**
      * Removes the given listener from the set's list of listeners.
      *
@@ -129,12 +139,100 @@ public interface Set {
      */
     void render();
 
+    /**
+     * Pauses the current rendering, saving a checkpoint of its progress.
+     * Has no affect if rendering has already completed.
+     */
+    void renderPause();
+
+    /**
+     * Resumes the current rendering after it was paused.
+     */
+    void renderResume();
+
     /**
      * Cause the current rendering to stop. Has no affect if rendering
      * has already completed.
      */
     void renderStop();
 
+    /**
+     * Restores the region history saved by <code>saveSession()</code>,
+     * and shows the region that was current.
+     *
+     * @param  file  file holding the session.
+     * @return  true if a session was restored, false if none was saved.
+     * @throws  IOException
+     *          if the file could not be read.
+     */
+    boolean restoreSession(File file) throws IOException;
+
+    /**
+     * Resumes the render recorded in the checkpoint file, if there is
+     * one, such as a render that was running when the program exited.
+     *
+     * @return  true if a render was resumed, false otherwise.
+     */
+    boolean resumeCheckpoint();
+
+    /**
+     * Saves the region history, with the dwell data of the rendered
+     * regions, so that it may be restored later.
+     *
+     * @param  file  file to save the session to.
+     * @throws  IOException
+     *          if the file could not be written.
+     */
+    void saveSession(File file) throws IOException;
+
+    /**
+     * Captures the region history as it is now, and returns a task that
+     * saves it as <code>saveSession()</code> does. Packing and writing
+     * the dwell data take a while, so the task may be run on another
+     * thread, even after the set has been closed. The task logs rather
+     * than throws any failure to save.
+     *
+     * @param  file  file to save the session to.
+     * @return  task that saves the session, or null if no history.
+     */
+    Runnable createSessionSaver(File file);
+
+    /**
+     * Indicates whether the window showing this set is the active
+     * window. The renders of the active set are given priority over
+     * those of the other sets.
+     *
+     * @param  active  true if active, false otherwise.
+     */
+    void setActive(boolean active);
+
+    /**
+     * Sets the point of the set on which the user is focused, such as
+     * the center of the last selection. The next render will start
+     * from this point and spiral outward.
+     *
+     * @param  x  x position within the set.
+     * @param  y  y position within the set.
+     */
+    void setFocus(BenoitNumber x, BenoitNumber y);
+
+    /**
+     * Sets the length of time the user input must be idle before a
+     * render proceeds from the reduced quality previews to the full
+     * resolution and dwell limit.
+     *
+     * @param  millis  idle time in milliseconds.
+     */
+    void setIdleDelay(long millis);
+
+    /**
+     * Indicates whether the window showing this set is minimized. The
+     * renders of a minimized set may be throttled.
+     *
+     * @param  minimized  true if minimized, false otherwise.
+     */
+    void setMinimized(boolean minimized);
+
     /**
      * Sets the numeric precision used by this Set.
      *
@@ -0,0 +1,135 @@
+/*********************************************************************
+ *
+ *      Copyright (C) 2002-2014 Nathan Fiedler
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * $Id$
+ *
+ ********************************************************************/
+
+package com.bluemarsh.benoit.action;
+
+import com.bluemarsh.benoit.render.RenderExecutor;
+import java.awt.Frame;
+import java.awt.event.ActionEvent;
+import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
+import javax.swing.JOptionPane;
+import javax.swing.JTextField;
+
+/**
+ * Implements the renderOptions program action, which adjusts how much
+ * of the machine the renderers may use. The changes take effect right
+ * away, including for renders already underway.
+ *
+ * @author  Nathan Fiedler
+ */
+public class RenderOptionsAction extends BenoitAction {
+    /** silence the compiler warnings */
+    private static final long serialVersionUID = 1L;
+    /** Thread priorities offered, in the order of the choices. */
+    private static final int[] PRIORITIES = {
+        Thread.MIN_PRIORITY, Thread.NORM_PRIORITY, Thread.MAX_PRIORITY
+    };
+
+    /**
+     * Creates a new RenderOptionsAction object with the default action
+     * command string of "renderOptions".
+     */
+    public RenderOptionsAction() {
+        super("renderOptions");
+    }
+
+    /**
+     * Performs the renderOptions action.
+     *
+     * @param  event  action event
+     */
+    public void actionPerformed(ActionEvent event) {
+        Frame frame = getOwningFrame(event);
+        RenderExecutor executor = RenderExecutor.getDefault();
+
+        JTextField threadsField = new JTextField(
+            String.valueOf(executor.getMaxThreads()), 10);
+        String[] choices = {
+            Bundle.getString("RenderOptions.priorityLow"),
+            Bundle.getString("RenderOptions.priorityNormal"),
+            Bundle.getString("RenderOptions.priorityHigh")
+        };
+        JComboBox priorityBox = new JComboBox(choices);
+        int priority = executor.getThreadPriority();
+        priorityBox.setSelectedIndex(priority < Thread.NORM_PRIORITY ? 0
+            : priority > Thread.NORM_PRIORITY ? 2 : 1);
+        JTextField dutyField = new JTextField(String.valueOf(
+            Math.round(executor.getDutyCycle() * 100)), 10);
+        JCheckBox throttleBox = new JCheckBox(
+            Bundle.getString("RenderOptions.autoThrottle"),
+            executor.isAutoThrottle());
+
+        Object messages[] = {
+            Bundle.getString("RenderOptions.threads"),
+            threadsField,
+            Bundle.getString("RenderOptions.priority"),
+            priorityBox,
+            Bundle.getString("RenderOptions.dutyCycle"),
+            dutyField,
+            throttleBox
+        };
+
+        int threads = 0;
+        int duty = 0;
+        boolean responseOkay = false;
+        while (!responseOkay) {
+            // Show dialog to get user input.
+            int response = JOptionPane.showOptionDialog(
+                frame, messages,
+                Bundle.getString("RenderOptions.title"),
+                JOptionPane.OK_CANCEL_OPTION,
+                JOptionPane.QUESTION_MESSAGE,
+                null, null, null);
+            if (response != JOptionPane.OK_OPTION) {
+                // user cancelled
+                return;
+            }
+
+            try {
+                threads = Integer.parseInt(threadsField.getText().trim());
+            } catch (NumberFormatException nfe) {
+                threads = 0;
+            }
+            try {
+                duty = Integer.parseInt(dutyField.getText().trim());
+            } catch (NumberFormatException nfe) {
+                duty = 0;
+            }
+            if (threads < 1) {
+                displayError(event, Bundle.getString(
+                                 "RenderOptions.invalidThreads"));
+            } else if (duty < 10 || duty > 100) {
+                displayError(event, Bundle.getString(
+                                 "RenderOptions.invalidDutyCycle"));
+            } else {
+                responseOkay = true;
+            }
+        }
+
+        executor.setMaxThreads(threads);
+        executor.setThreadPriority(
+            PRIORITIES[priorityBox.getSelectedIndex()]);
+        executor.setDutyCycle(duty / 100.0);
+        executor.setAutoThrottle(throttleBox.isSelected());
+    }
+}
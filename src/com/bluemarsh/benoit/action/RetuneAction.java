@@ -0,0 +1,96 @@
+/*********************************************************************
+ *
+ *      Copyright (C) 2002-2014 Nathan Fiedler
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * $Id$
+ *
+ ********************************************************************/
+
+package com.bluemarsh.benoit.action;
+
+import com.bluemarsh.benoit.render.Calibration;
+import com.bluemarsh.benoit.render.RenderScope;
+import com.bluemarsh.benoit.render.Tuning;
+import java.awt.EventQueue;
+import java.awt.Frame;
+import java.awt.event.ActionEvent;
+import java.io.IOException;
+import javax.swing.JOptionPane;
+
+/**
+ * Implements the retune program action, which finds the render settings
+ * that suit this machine once again, such as after the hardware has
+ * changed. The calibration runs in the background and the results are
+ * shown when it finishes.
+ *
+ * @author  Nathan Fiedler
+ */
+public class RetuneAction extends BenoitAction {
+    /** silence the compiler warnings */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Creates a new RetuneAction object with the default action
+     * command string of "retune".
+     */
+    public RetuneAction() {
+        super("retune");
+    }
+
+    /**
+     * Performs the retune action.
+     *
+     * @param  event  action event
+     */
+    public void actionPerformed(final ActionEvent event) {
+        final Frame frame = getOwningFrame(event);
+        int response = JOptionPane.showConfirmDialog(
+            frame, Bundle.getString("Retune.confirm"),
+            Bundle.getString("Retune.title"),
+            JOptionPane.OK_CANCEL_OPTION);
+        if (response != JOptionPane.OK_OPTION) {
+            return;
+        }
+        setEnabled(false);
+        RenderScope.newThread(new Runnable() {
+            public void run() {
+                String result;
+                try {
+                    result = new Calibration(Tuning.getDefault()).run();
+                } catch (IOException ioe) {
+                    result = null;
+                }
+                final String summary = result;
+                EventQueue.invokeLater(new Runnable() {
+                    public void run() {
+                        setEnabled(true);
+                        if (summary == null) {
+                            displayError(event, Bundle.getString(
+                                             "Retune.saveFailed"));
+                        } else {
+                            JOptionPane.showMessageDialog(
+                                frame, Bundle.getString("Retune.done")
+                                + "\n" + summary,
+                                Bundle.getString("Retune.title"),
+                                JOptionPane.INFORMATION_MESSAGE);
+                        }
+                    }
+                });
+            }
+        }, "calibration").start();
+    }
+}
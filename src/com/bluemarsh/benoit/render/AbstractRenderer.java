@@ -22,6 +22,12 @@
 
 package com.bluemarsh.benoit.render;
 
+import com.bluemarsh.benoit.model.Parameters;
+import java.awt.Graphics;
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.swing.event.EventListenerList;
 
 /**
@@ -30,8 +36,19 @@ import javax.swing.event.EventListenerList;
  * @author  Nathan Fiedler
  */
 public abstract class AbstractRenderer implements Renderer {
+    /** Sample step of the pass used to estimate the cost of the tiles. */
+    private static final int COST_SAMPLE_STEP = 8;
+    /** Tiles costing this many times the average are split. */
+    private static final double HOT_TILE_FACTOR = 4.0;
+    /** Tiles are not split smaller than this. */
+    private static final int MIN_SPLIT_SIZE = 8;
+    /** Logger. */
+    private static Logger logger = Logger.getLogger(
+        "com.bluemarsh.benoit.render");
     /** List of render listeners. */
     private EventListenerList renderListeners;
+    /** Tile size set for this renderer, or zero to use the tuned size. */
+    private int tileSize;
 
     /**
      * Constructs a AbstractRenderer.
@@ -49,6 +66,34 @@ public abstract class AbstractRenderer implements Renderer {
         renderListeners.add(RenderListener.class, l);
     }
 
+    /**
+     * Creates the kernel that computes the points of the given region.
+     *
+     * @param  params      boundaries of region to draw.
+     * @param  width       width of the image.
+     * @param  height      height of the image.
+     * @param  dwellLimit  maximum number of iterations per point.
+     * @return  new kernel.
+     */
+    protected abstract Kernel createKernel(Parameters params, int width,
+                                           int height, int dwellLimit);
+
+    /**
+     * Creates the kernel that computes the points of a preview of the
+     * given region. The kernel may trade precision for speed, so long
+     * as the preview looks much the same as the full render.
+     *
+     * @param  params      boundaries of region to draw.
+     * @param  width       width of the image.
+     * @param  height      height of the image.
+     * @param  dwellLimit  maximum number of iterations per point.
+     * @return  new kernel, by default the same as for a full render.
+     */
+    protected Kernel createPreviewKernel(Parameters params, int width,
+                                         int height, int dwellLimit) {
+        return createKernel(params, width, height, dwellLimit);
+    }
+
     /**
      * Let all the render listeners know that the rendered image
      * has been updated.
@@ -56,12 +101,35 @@ public abstract class AbstractRenderer implements Renderer {
      * @param  percent  percentage of region rendered.
      */
     protected void fireUpdate(int percent) {
+        fireUpdate(percent, null);
+    }
+
+    /**
+     * Let all the render listeners know that a region of the rendered
+     * image has been updated.
+     *
+     * @param  percent  percentage of region rendered.
+     * @param  region   portion of the image that changed, may be null.
+     */
+    protected void fireUpdate(int percent, Rectangle region) {
+        fireUpdate(null, percent, region);
+    }
+
+    /**
+     * Let all the render listeners know that a region of the image
+     * rendered for the given job has been updated.
+     *
+     * @param  job      the job being rendered, may be null.
+     * @param  percent  percentage of region rendered.
+     * @param  region   portion of the image that changed, may be null.
+     */
+    protected void fireUpdate(RenderJob job, int percent, Rectangle region) {
         if (renderListeners == null) {
             return;
         }
 
         // Create the render update event.
-        RenderEvent re = new RenderEvent(this, percent);
+        RenderEvent re = new RenderEvent(this, job, percent, region);
         // Get the listener list as class/instance pairs.
         Object[] listeners = renderListeners.getListenerList();
         // Process the listeners last to first.
@@ -74,6 +142,43 @@ public abstract class AbstractRenderer implements Renderer {
         }
     }
 
+    /**
+     * Returns the sample step of the first refinement pass. Renderers
+     * that are slow to compute each point return a larger value so that
+     * a rough representation of the region appears early on.
+     *
+     * @return  sample step of the first pass, a power of two.
+     */
+    protected int getCoarsestStep() {
+        return 1;
+    }
+
+    /**
+     * Returns the width and height of the tiles the image is divided
+     * into. This must be a multiple of the coarsest step.
+     *
+     * @return  tile size in pixels.
+     */
+    protected int getTileSize() {
+        if (tileSize > 0) {
+            return tileSize;
+        }
+        int size = Tuning.getDefault().getTileSize(
+            getTuningKey(), TileScheduler.DEFAULT_TILE_SIZE);
+        if (size % getCoarsestStep() != 0) {
+            size = TileScheduler.DEFAULT_TILE_SIZE;
+        }
+        return size;
+    }
+
+    /**
+     * Returns the name under which the settings tuned for this renderer
+     * are kept, such as the tile size.
+     *
+     * @return  tuning key.
+     */
+    protected abstract String getTuningKey();
+
     /**
      * Removes the given listener from the renderer's list of listeners.
      *
@@ -82,4 +187,531 @@ public abstract class AbstractRenderer implements Renderer {
     public void removeListener(RenderListener l) {
         renderListeners.remove(RenderListener.class, l);
     }
+
+    /**
+     * Renders the Mandelbrot set to the image using the given
+     * parameters, at full quality.
+     *
+     * @param  image   image to render to.
+     * @param  params  boundaries of region to draw.
+     */
+    public void render(Image image, Parameters params) {
+        render(new RenderJob(image, params));
+    }
+
+    /**
+     * Renders the region described by the job. This uses successive
+     * refinement, starting at the coarsest step for this renderer and
+     * halving the step with each pass until the step of the job is
+     * reached. Each pass works through the tiles of the image in the
+     * order given by the tile order of the job, using as many threads
+     * as this renderer allows, and is finished before the next pass is
+     * started. Points already computed, either by an earlier pass or by
+     * an earlier job sharing the same samples, are not computed again.
+     * The job is checked for cancellation between every point, and
+     * the kernel checks it while computing slow points. If the job is
+     * paused, the threads wait between points until it is resumed.
+     *
+     * <p>If the job is cost scheduled, the first pass is no finer than
+     * a fixed coarse step, and the dwell of its points is used to
+     * estimate the cost of each tile. The passes that follow start on
+     * the most expensive tiles, and tiles far more expensive than the
+     * average are split so the threads finish the pass together.</p>
+     *
+     * @param  job  describes the region and quality of the render.
+     * @return  true if the render completed, false if cancelled.
+     */
+    public boolean render(RenderJob job) {
+        Image image = job.getImage();
+        int width = image.getWidth(null);
+        int height = image.getHeight(null);
+        if (width == -1 || height == -1) {
+            // Image is not ready yet.
+            throw new IllegalArgumentException("image not loaded");
+        }
+        int dwellLimit = job.getDwellLimit();
+        Kernel kernel;
+        if (job.isPreview()) {
+            kernel = createPreviewKernel(job.getParameters(), width, height,
+                                         dwellLimit);
+        } else {
+            kernel = createKernel(job.getParameters(), width, height,
+                                  dwellLimit);
+        }
+        // Samples left by an approximate preview are kept as estimates
+        // of the cost of the tiles until they are computed again.
+        boolean estimated = job.getSamples().isApproximate()
+            && !kernel.isApproximate();
+        job.getSamples().setApproximate(kernel.isApproximate());
+        job.getSamples().setDwellLimit(dwellLimit);
+        kernel.setCancelToken(job.getCancelToken());
+        PixelGrid grid = null;
+        if (job.getTileCache() != null && !job.isPreview()
+            && !kernel.isApproximate()) {
+            grid = PixelGrid.create(job.getParameters(), width, height);
+            if (grid != null) {
+                job.getTileCache().fill(grid, job.getSamples());
+            }
+        }
+        TileScheduler scheduler = new TileScheduler(
+            width, height, getTileSize(), job.getTileOrder());
+
+        int finest = job.getStep();
+        int coarsest = Math.max(getCoarsestStep(), finest);
+        if (job.isCostScheduled()) {
+            coarsest = Math.max(coarsest,
+                                Math.min(COST_SAMPLE_STEP, getTileSize()));
+        }
+        int passes = 1;
+        for (int step = coarsest; step > finest; step >>= 1) {
+            passes++;
+        }
+        Progress progress = new Progress(job, (long) passes * width * height);
+        for (int step = coarsest; step >= finest; step >>= 1) {
+            if ((step < coarsest || estimated) && job.isCostScheduled()) {
+                CostOrder costs = new CostOrder(
+                    job.hasTileOrder() ? job.getTileOrder() : null,
+                    job.getSamples(), step < coarsest ? step * 2 : step);
+                scheduler.splitHotTiles(costs, step, HOT_TILE_FACTOR,
+                                        MIN_SPLIT_SIZE);
+                scheduler.setOrder(costs);
+            }
+            scheduler.reset();
+            PassWorker worker = new PassWorker(
+                job, scheduler, step, step == coarsest, kernel, progress);
+            long start = System.nanoTime();
+            if (!runPass(worker)) {
+                return false;
+            }
+            job.addPassTiming(worker.getBusyTime(), System.nanoTime() - start,
+                              worker.getTaskCount());
+        }
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("rendered " + scheduler.getTileCount() + " tiles in "
+                        + passes + " passes, load balance "
+                        + Math.round(job.getLoadBalance() * 100) + "%");
+        }
+        if (grid != null) {
+            job.getTileCache().store(grid, job.getSamples());
+        }
+
+        // Fire off the final update.
+        fireUpdate(job, job.getProgressBase() + job.getProgressSpan(), null);
+        return true;
+    }
+
+    /**
+     * Sets the width and height of the tiles the image is divided into,
+     * overriding the size tuned for this machine.
+     *
+     * @param  size  tile size in pixels, or zero to use the tuned size.
+     */
+    public void setTileSize(int size) {
+        tileSize = size;
+    }
+
+    /**
+     * Returns the largest number of threads that may render each pass.
+     * The render executor may allow fewer.
+     *
+     * @return  number of threads.
+     */
+    protected int getThreadCount() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Runs the pass worker on the render executor and waits for the
+     * pass to finish. The tiles of the pass are submitted one at a time
+     * on behalf of the client of the job, so that they share the
+     * processors fairly with the work of other clients.
+     *
+     * @param  worker  renders the tiles of the pass.
+     * @return  true if the pass completed, false if cancelled.
+     */
+    protected boolean runPass(PassWorker worker) {
+        RenderExecutor.Client client = worker.getJob().getClient();
+        int count = Math.min(getThreadCount(),
+                             client.getExecutor().getMaxPerClient());
+        worker.start(client, count);
+        try {
+            worker.await();
+        } catch (InterruptedException ie) {
+            // Leave the tasks to wind down on their own.
+            worker.abort();
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return !worker.isAborted();
+    }
+
+    /**
+     * Renders the points of one tile that lie on the grid of the given
+     * step, drawing each point as a square of that size. A point whose
+     * mirror image across the real axis was already computed takes the
+     * dwell of its mirror, so views that straddle the axis compute
+     * little more than half of their points.
+     *
+     * @param  tile    tile to render.
+     * @param  job     the job being rendered.
+     * @param  step    distance between the points.
+     * @param  first   true if this is the first pass of the job.
+     * @param  kernel  computes the points.
+     * @param  g       graphics context of the image.
+     * @return  true if the tile completed, false if cancelled.
+     */
+    protected boolean renderTile(Tile tile, RenderJob job, int step,
+                                 boolean first, Kernel kernel, Graphics g) {
+        DwellData samples = job.getSamples();
+        int dwellLimit = kernel.getDwellLimit();
+        int right = tile.getX() + tile.getWidth();
+        int bottom = tile.getY() + tile.getHeight();
+        // Points not yet computed are gathered into batches for the kernel.
+        int[] ys = new int[kernel.getBatchSize()];
+        int[] dwells = new int[ys.length];
+        for (int x = tile.getX(); x < right; x += step) {
+            int count = 0;
+            for (int y = tile.getY(); y < bottom; y += step) {
+                if (job.isCancelled() || job.isPaused()) {
+                    return false;
+                }
+                int dwell = samples.get(x, y);
+                if (dwell <= 0) {
+                    // Not computed, or only provisional.
+                    dwell = 0;
+                    int mirror = kernel.getMirrorRow(y);
+                    if (mirror >= 0 && samples.isComputed(x, mirror)) {
+                        dwell = samples.get(x, mirror);
+                    }
+                    if (dwell == 0) {
+                        ys[count++] = y;
+                        if (count == ys.length) {
+                            if (!computeBatch(x, ys, count, dwells, step,
+                                              kernel, samples, g)) {
+                                return false;
+                            }
+                            count = 0;
+                        }
+                        continue;
+                    }
+                    // Same as the point mirrored across the real axis.
+                    samples.set(x, y, dwell);
+                } else if (!first && ((x / step) % 2) == 0
+                           && ((y / step) % 2) == 0) {
+                    // Drawn by the previous pass of this job.
+                    continue;
+                }
+                g.setColor(DwellData.getColor(dwell, dwellLimit));
+                g.fillRect(x, y, step, step);
+            }
+            if (count > 0 && !computeBatch(x, ys, count, dwells, step,
+                                           kernel, samples, g)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Computes a batch of points of one column, then saves and draws them.
+     *
+     * @param  x        column of the points.
+     * @param  ys       rows of the points.
+     * @param  count    number of points.
+     * @param  dwells   receives the dwell of each point.
+     * @param  step     size of the square drawn for each point.
+     * @param  kernel   computes the points.
+     * @param  samples  where the dwells are saved.
+     * @param  g        graphics to draw with.
+     * @return  true if the points were computed, false if cancelled.
+     */
+    private boolean computeBatch(int x, int[] ys, int count, int[] dwells,
+                                 int step, Kernel kernel, DwellData samples,
+                                 Graphics g) {
+        kernel.dwell(x, ys, count, dwells);
+        int dwellLimit = kernel.getDwellLimit();
+        for (int i = 0; i < count; i++) {
+            if (dwells[i] == 0) {
+                // The kernel gave up on the point.
+                return false;
+            }
+            samples.set(x, ys[i], dwells[i]);
+            g.setColor(DwellData.getColor(dwells[i], dwellLimit));
+            g.fillRect(x, ys[i], step, step);
+        }
+        return true;
+    }
+
+    /**
+     * Counts the area rendered for a job and reports the progress.
+     */
+    protected class Progress {
+        /** The job being rendered. */
+        private RenderJob job;
+        /** Area of the tiles in all of the passes, in pixels. */
+        private long total;
+        /** Area of the tiles rendered so far. */
+        private long done;
+
+        /**
+         * Constructs a Progress.
+         *
+         * @param  job    the job being rendered.
+         * @param  total  area of the tiles in all of the passes.
+         */
+        public Progress(RenderJob job, long total) {
+            this.job = job;
+            this.total = total;
+        }
+
+        /**
+         * Counts one more rendered tile, publishes it, and reports the
+         * progress along with the region of the image covered by the
+         * tile. The events are sent in order so the percentage never
+         * goes backward. Tiles finished at the step of the job are
+         * recorded in the checkpoint of the job, if any.
+         *
+         * @param  tile  the tile that was rendered.
+         * @param  step  distance between the points of the tile.
+         */
+        public synchronized void tileDone(Tile tile, int step) {
+            done += (long) tile.getWidth() * tile.getHeight();
+            Checkpoint checkpoint = job.getCheckpoint();
+            if (checkpoint != null && step == job.getStep()) {
+                checkpoint.tileDone(tile);
+            }
+            int percent = job.getProgressBase()
+                + (int) (job.getProgressSpan() * done / total);
+            Rectangle region = new Rectangle(
+                tile.getX(), tile.getY(), tile.getWidth(), tile.getHeight());
+            job.publish(region);
+            fireUpdate(job, percent, region);
+        }
+    }
+
+    /**
+     * Renders the tiles of one pass until there are none left. The
+     * worker is run as several tasks on the render executor, each of
+     * which renders one tile and then submits itself again, so that the
+     * tiles of the pass are shared between the threads of the executor
+     * and interleaved with the work of other clients.
+     */
+    protected class PassWorker implements Runnable {
+        /** The job being rendered. */
+        private RenderJob job;
+        /** Hands out the tiles of the pass. */
+        private TileScheduler scheduler;
+        /** Distance between the points. */
+        private int step;
+        /** True if this is the first pass of the job. */
+        private boolean first;
+        /** Computes the points. */
+        private Kernel kernel;
+        /** Counts the rendered tiles. */
+        private Progress progress;
+        /** Client of the executor running the tasks. */
+        private RenderExecutor.Client client;
+        /** Number of tasks that have not yet finished. */
+        private int active;
+        /** Number of tasks running at once. */
+        private int taskCount;
+        /** Time spent by the tasks rendering tiles, in nanoseconds. */
+        private long busyTime;
+        /** True if any task stopped before the pass was finished. */
+        private volatile boolean aborted;
+        /** Submits this worker again, once the job is not paused. */
+        private Runnable resubmit = new Runnable() {
+            public void run() {
+                try {
+                    client.submit(PassWorker.this);
+                } catch (RuntimeException re) {
+                    aborted = true;
+                    logger.log(Level.SEVERE, "could not submit tile", re);
+                    finished();
+                }
+            }
+        };
+
+        /**
+         * Constructs a PassWorker.
+         *
+         * @param  job        the job being rendered.
+         * @param  scheduler  hands out the tiles of the pass.
+         * @param  step       distance between the points.
+         * @param  first      true if this is the first pass of the job.
+         * @param  kernel     computes the points.
+         * @param  progress   counts the rendered tiles.
+         */
+        public PassWorker(RenderJob job, TileScheduler scheduler, int step,
+                          boolean first, Kernel kernel, Progress progress) {
+            this.job = job;
+            this.scheduler = scheduler;
+            this.step = step;
+            this.first = first;
+            this.kernel = kernel;
+            this.progress = progress;
+        }
+
+        /**
+         * Stops the tasks of this worker after their current tile.
+         */
+        public void abort() {
+            aborted = true;
+        }
+
+        /**
+         * Waits until all of the tasks of this worker have finished.
+         *
+         * @throws  InterruptedException
+         *          if the thread is interrupted while waiting.
+         */
+        public synchronized void await() throws InterruptedException {
+            while (active > 0) {
+                wait();
+            }
+        }
+
+        /**
+         * Notes that one of the tasks of this worker has finished.
+         */
+        private synchronized void finished() {
+            active--;
+            if (active == 0) {
+                notifyAll();
+            }
+        }
+
+        /**
+         * Returns the time spent by the tasks rendering tiles.
+         *
+         * @return  busy time in nanoseconds.
+         */
+        public synchronized long getBusyTime() {
+            return busyTime;
+        }
+
+        /**
+         * Returns the number of tasks running at once.
+         *
+         * @return  number of tasks.
+         */
+        public int getTaskCount() {
+            return taskCount;
+        }
+
+        /**
+         * Returns the job being rendered.
+         *
+         * @return  render job.
+         */
+        public RenderJob getJob() {
+            return job;
+        }
+
+        /**
+         * Indicates if any task of this worker stopped before the pass
+         * was finished.
+         *
+         * @return  true if aborted, false otherwise.
+         */
+        public boolean isAborted() {
+            return aborted;
+        }
+
+        /**
+         * Renders the next tile, then submits this worker again if the
+         * pass is not finished. While the job is paused the worker is
+         * put aside rather than submitted, and a tile stopped by the
+         * pause is handed out again once the job is resumed, so that a
+         * paused job holds none of the threads of the executor.
+         */
+        public void run() {
+            boolean more = false;
+            long start = System.nanoTime();
+            try {
+                if (job.isPaused() && !job.isCancelled()) {
+                    more = !aborted;
+                } else {
+                    more = renderNext();
+                }
+            } catch (RuntimeException re) {
+                // A tile that failed leaves a hole in the image, so the
+                // pass must not count as finished.
+                aborted = true;
+                logger.log(Level.SEVERE, "tile render failed", re);
+            } finally {
+                synchronized (this) {
+                    busyTime += System.nanoTime() - start;
+                }
+                if (more) {
+                    job.whenResumed(resubmit);
+                } else {
+                    finished();
+                }
+            }
+        }
+
+        /**
+         * Renders the next tile of the pass.
+         *
+         * @return  true if there may be more tiles to render, false if
+         *          the pass is finished or was stopped.
+         */
+        private boolean renderNext() {
+            Tile tile = aborted ? null : scheduler.nextTile();
+            if (tile == null) {
+                return false;
+            }
+            Graphics g = job.getImage().getGraphics();
+            try {
+                if (renderTile(tile, job, step, first, kernel, g)) {
+                    progress.tileDone(tile, step);
+                    return !aborted;
+                }
+            } finally {
+                g.dispose();
+            }
+            if (job.isPaused() && !job.isCancelled()) {
+                // Start the tile over once the job is resumed.
+                scheduler.putBack(tile);
+                return !aborted;
+            }
+            aborted = true;
+            return false;
+        }
+
+        /**
+         * Submits the given number of tasks to the executor. If the
+         * executor refuses one, the pass is aborted.
+         *
+         * @param  client  client on whose behalf the tasks run.
+         * @param  count   number of tasks to run at once.
+         */
+        public void start(RenderExecutor.Client client, int count) {
+            this.client = client;
+            count = Math.max(1, Math.min(count, scheduler.getTileCount()));
+            taskCount = count;
+            synchronized (this) {
+                active = count;
+            }
+            int submitted = 0;
+            try {
+                while (submitted < count) {
+                    client.submit(this);
+                    submitted++;
+                }
+            } catch (RuntimeException re) {
+                // The tasks that were submitted stop after their tile,
+                // and the others never run, so count them as finished.
+                aborted = true;
+                logger.log(Level.SEVERE, "could not submit tile", re);
+                synchronized (this) {
+                    active -= count - submitted;
+                    if (active == 0) {
+                        notifyAll();
+                    }
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,524 @@
+/*********************************************************************
+ *
+ *      Copyright (C) 2002-2014 Nathan Fiedler
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * $Id$
+ *
+ ********************************************************************/
+
+package com.bluemarsh.benoit.render;
+
+import com.bluemarsh.benoit.model.Parameters;
+import java.awt.Graphics;
+import java.awt.Image;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Renders the best image it can within a given length of time. The
+ * cost of the region is first estimated by computing a small grid of
+ * points, and the dwell limit is lowered if the region would not
+ * otherwise reach a reasonable resolution in time. The image is then
+ * rendered at successively finer sample steps, all sharing the same
+ * samples, and finally at successively higher dwell limits up to the
+ * one requested. When the time runs out the render stops and the
+ * image, as it stands, is the result.
+ *
+ * <p>The time limit applies to the probe and to every pass, the first
+ * included, so the render never overruns its budget by more than the
+ * time to stop, which is the time to compute a point or a small batch
+ * of them. The tiles are rendered from the center outward, unless the
+ * job gives an order of its own, so a first pass that is cut short
+ * still shows the middle of the image. A pass that raises the dwell
+ * limit and is cut short is not left half done: the image is colored
+ * again from the samples at the previous limit, as all of them are
+ * still valid at that limit.</p>
+ *
+ * <p>The listeners of the renderer given to this class receive the
+ * progress of each pass, each within its share of the progress range
+ * of the job.</p>
+ *
+ * @author  Nathan Fiedler
+ */
+public class AnytimeRenderer {
+    /** Sample step of the coarsest pass. */
+    private static final int COARSEST_STEP = 16;
+    /** Minimum number of samples across the first pass. */
+    private static final int MIN_SAMPLES = 16;
+    /** Number of points along each side of the probe grid. */
+    private static final int PROBE_POINTS = 16;
+    /** The lowest dwell limit that will be chosen. */
+    private static final int MIN_DWELL_LIMIT = 32;
+    /** Cancels the renders whose time has run out. */
+    private static Timer deadlines;
+    /** Renderer that does the rendering. */
+    private AbstractRenderer renderer;
+
+    /**
+     * Constructs an AnytimeRenderer.
+     *
+     * @param  renderer  renderer that does the rendering.
+     */
+    public AnytimeRenderer(AbstractRenderer renderer) {
+        this.renderer = renderer;
+    }
+
+    /**
+     * Chooses the dwell limit to start with, such that the region can
+     * be rendered at twice the finest step of the job within the given
+     * time (half resolution for a full resolution job). This is
+     * estimated by timing a small grid of points at the full limit,
+     * and assumes the cost of a point is roughly in proportion to the
+     * dwell limit. The probe runs under the token of the render, so it
+     * ends with the budget, and stops early once it has taken a tenth
+     * of the time, as it may be slow for deep regions. The dwells of
+     * the probed points, which lie on the grid of the first pass, are
+     * kept in the samples of the job so that pass need not compute
+     * them again.
+     *
+     * @param  job     the job to be rendered.
+     * @param  width   width of the image.
+     * @param  height  height of the image.
+     * @param  first   step of the first pass.
+     * @param  budget  time available, in milliseconds.
+     * @param  token   signals the render to stop.
+     * @return  dwell limit to start with.
+     */
+    protected int chooseDwellLimit(RenderJob job, int width, int height,
+                                   int first, long budget,
+                                   CancelToken token) {
+        int dwellLimit = job.getDwellLimit();
+        if (dwellLimit <= MIN_DWELL_LIMIT) {
+            return dwellLimit;
+        }
+        Kernel kernel;
+        if (job.isPreview()) {
+            kernel = renderer.createPreviewKernel(job.getParameters(), width,
+                                                  height, dwellLimit);
+        } else {
+            kernel = renderer.createKernel(job.getParameters(), width,
+                                           height, dwellLimit);
+        }
+        kernel.setCancelToken(token);
+        int[] xs = new int[PROBE_POINTS * PROBE_POINTS];
+        int[] ys = new int[xs.length];
+        int[] dwells = new int[xs.length];
+        long start = System.nanoTime();
+        long end = start + budget * 100000;
+        int probed = 0;
+        while (probed < xs.length && System.nanoTime() - end < 0
+               && !token.isCancelled()) {
+            int i = probed / PROBE_POINTS;
+            int j = probed % PROBE_POINTS;
+            int x = (2 * i + 1) * width / (2 * PROBE_POINTS);
+            int y = (2 * j + 1) * height / (2 * PROBE_POINTS);
+            xs[probed] = x - x % first;
+            ys[probed] = y - y % first;
+            dwells[probed] = kernel.dwell(xs[probed], ys[probed]);
+            if (dwells[probed] == 0) {
+                // The kernel gave up on the point.
+                break;
+            }
+            probed++;
+        }
+        int limit = dwellLimit;
+        if (probed == 0) {
+            limit = MIN_DWELL_LIMIT;
+        } else {
+            double perPoint = (double) (System.nanoTime() - start) / probed;
+            double step = 2.0 * job.getStep();
+            double cost = perPoint * width * height / (step * step);
+            double available = budget * 1000000.0;
+            if (cost > available) {
+                limit = Math.max(MIN_DWELL_LIMIT,
+                                 (int) (dwellLimit * available / cost));
+            }
+        }
+        // A point that escaped below the chosen limit has the same dwell
+        // under it; any other point reaches the chosen limit.
+        DwellData samples = job.getSamples();
+        samples.setApproximate(kernel.isApproximate());
+        samples.setDwellLimit(limit);
+        for (int k = 0; k < probed; k++) {
+            if (!samples.isComputed(xs[k], ys[k])) {
+                samples.set(xs[k], ys[k], Math.min(dwells[k], limit));
+            }
+        }
+        return limit;
+    }
+
+    /**
+     * Creates a job to render the given region on its own, with new
+     * samples, from the center of the image outward.
+     *
+     * @param  image       image to render to.
+     * @param  params      boundaries of region to draw.
+     * @param  dwellLimit  the highest dwell limit to use.
+     * @return  new job.
+     */
+    private static RenderJob createJob(Image image, Parameters params,
+                                       int dwellLimit) {
+        int width = image.getWidth(null);
+        int height = image.getHeight(null);
+        RenderJob job = new RenderJob(image, params, dwellLimit);
+        job.setSamples(new DwellData(width, height));
+        job.setTileOrder(new SpiralOrder(new Point(width / 2, height / 2)));
+        return job;
+    }
+
+    /**
+     * Returns the step of the first pass, which is the coarsest step
+     * that still gives a reasonable number of samples across the image.
+     *
+     * @param  width   width of the image.
+     * @param  height  height of the image.
+     * @param  finest  step of the finest pass.
+     * @return  sample step.
+     */
+    private static int firstStep(int width, int height, int finest) {
+        int step = Math.max(COARSEST_STEP, finest);
+        while (step > finest && Math.min(width, height) / step < MIN_SAMPLES) {
+            step >>= 1;
+        }
+        return step;
+    }
+
+    /**
+     * Starts rendering the region in the background, stopping once the
+     * given length of time has elapsed. The image returned by the
+     * future is the image passed in, which also shows the progress of
+     * the render while it runs. Cancelling the future stops the render.
+     *
+     * @param  image       image to render to.
+     * @param  params      boundaries of region to draw.
+     * @param  dwellLimit  the highest dwell limit to use.
+     * @param  budget      time available, in milliseconds.
+     * @return  future whose result is the rendered image.
+     */
+    public Future render(Image image, Parameters params, int dwellLimit,
+                         long budget) {
+        RenderTask task = new RenderTask(
+            createJob(image, params, dwellLimit), budget);
+        RenderScope.newThread(task, "anytime-render").start();
+        return task;
+    }
+
+    /**
+     * Renders the region on the current thread, returning once the
+     * given length of time has elapsed or the render has finished.
+     *
+     * @param  image       image to render to.
+     * @param  params      boundaries of region to draw.
+     * @param  dwellLimit  the highest dwell limit to use.
+     * @param  budget      time available, in milliseconds.
+     * @return  the rendered image.
+     */
+    public Image renderNow(Image image, Parameters params, int dwellLimit,
+                           long budget) {
+        RenderTask task = new RenderTask(
+            createJob(image, params, dwellLimit), budget);
+        task.run();
+        try {
+            return (Image) task.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ee.getCause();
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Renders the given job on the current thread, within the given
+     * length of time. The job supplies the image, samples, tile order,
+     * token, client and progress range of the render; its step is that
+     * of the finest pass, and its dwell limit the highest to use. Jobs
+     * that share the samples may follow this one, to finish the render
+     * once the time has run out.
+     *
+     * @param  job     the job to be rendered.
+     * @param  budget  time available, in milliseconds.
+     * @return  true if the render finished or ran out of time, false if
+     *          the job was cancelled.
+     */
+    public boolean renderWithin(RenderJob job, long budget) {
+        return new Render(job, budget).render();
+    }
+
+    /**
+     * Schedules the given token to be cancelled after a delay.
+     *
+     * @param  token  token to cancel.
+     * @param  delay  time in milliseconds.
+     * @return  the scheduled task.
+     */
+    private static synchronized TimerTask schedule(final CancelToken token,
+                                                   long delay) {
+        if (deadlines == null) {
+            deadlines = new Timer("anytime-deadlines", true);
+        }
+        TimerTask task = new TimerTask() {
+            public void run() {
+                token.cancel();
+            }
+        };
+        deadlines.schedule(task, Math.max(delay, 0));
+        return task;
+    }
+
+    /**
+     * Renders one image within a time budget.
+     */
+    protected class RenderTask extends FutureTask {
+        /** Signals the render to stop, when the task is cancelled. */
+        private CancelToken token;
+
+        /**
+         * Constructs a RenderTask.
+         *
+         * @param  job     the job to be rendered.
+         * @param  budget  time available, in milliseconds.
+         */
+        public RenderTask(RenderJob job, long budget) {
+            super(new Render(job, budget));
+            token = job.getCancelToken();
+        }
+
+        /**
+         * Cancels the render.
+         *
+         * @param  mayInterrupt  true to interrupt the render thread.
+         * @return  false if the render had already finished.
+         */
+        public boolean cancel(boolean mayInterrupt) {
+            token.cancel();
+            return super.cancel(mayInterrupt);
+        }
+    }
+
+    /**
+     * Performs the passes of a render within a time budget.
+     */
+    protected class Render implements Callable {
+        /** The job whose passes are rendered. */
+        private RenderJob job;
+        /** Time available, in milliseconds. */
+        private long budget;
+
+        /**
+         * Constructs a Render.
+         *
+         * @param  job     the job whose passes are rendered.
+         * @param  budget  time available, in milliseconds.
+         */
+        public Render(RenderJob job, long budget) {
+            this.job = job;
+            this.budget = budget;
+        }
+
+        /**
+         * Renders the image until the time runs out.
+         *
+         * @return  the rendered image.
+         */
+        public Object call() {
+            render();
+            return job.getImage();
+        }
+
+        /**
+         * Renders one pass at the given step and dwell limit.
+         *
+         * @param  step   sample step.
+         * @param  limit  dwell limit.
+         * @param  token  signals the pass to stop.
+         * @param  index  number of passes before this one.
+         * @param  count  number of passes in all.
+         * @return  true if the pass finished, false if it was stopped.
+         */
+        private boolean pass(int step, int limit, CancelToken token,
+                             int index, int count) {
+            RenderJob pass = job.derive(step, limit);
+            pass.setCancelToken(token);
+            int from = progress(index, count);
+            pass.setProgress(from, progress(index + 1, count) - from);
+            return renderer.render(pass);
+        }
+
+        /**
+         * Returns the percentage reported at the start of a pass.
+         *
+         * @param  index  number of passes before the pass.
+         * @param  count  number of passes in all.
+         * @return  percentage done.
+         */
+        private int progress(int index, int count) {
+            return job.getProgressBase()
+                + job.getProgressSpan() * index / count;
+        }
+
+        /**
+         * Colors the image again from the samples at the given dwell
+         * limit, which is lower than the one they were last computed
+         * at. The samples that reached the lower limit were cleared when
+         * the limit was raised, or computed since at the higher limit,
+         * and either way are shown at the lower limit.
+         *
+         * @param  step     sample step of the image.
+         * @param  limit    dwell limit to show.
+         * @param  percent  percentage done to report.
+         */
+        private void recolor(int step, int limit, int percent) {
+            Image image = job.getImage();
+            DwellData samples = job.getSamples();
+            int width = image.getWidth(null);
+            int height = image.getHeight(null);
+            Graphics g = image.getGraphics();
+            try {
+                for (int x = 0; x < width; x += step) {
+                    for (int y = 0; y < height; y += step) {
+                        int dwell = samples.getEstimate(x, y);
+                        if (dwell == 0 || dwell > limit) {
+                            dwell = limit;
+                        }
+                        g.setColor(DwellData.getColor(dwell, limit));
+                        g.fillRect(x, y, step, step);
+                    }
+                }
+            } finally {
+                g.dispose();
+            }
+            Rectangle region = new Rectangle(0, 0, width, height);
+            job.publish(region);
+            renderer.fireUpdate(job, percent, region);
+        }
+
+        /**
+         * Renders the passes of the image until the time runs out.
+         *
+         * @return  true if finished or out of time, false if cancelled.
+         */
+        public boolean render() {
+            CancelToken cancel = job.getCancelToken();
+            CancelToken token = new DeadlineToken(cancel);
+            TimerTask deadline = schedule(token, budget);
+            try {
+                Image image = job.getImage();
+                int width = image.getWidth(null);
+                int height = image.getHeight(null);
+                int finest = job.getStep();
+                int dwellLimit = job.getDwellLimit();
+                int first = firstStep(width, height, finest);
+                int limit = chooseDwellLimit(job, width, height, first,
+                                             budget, token);
+                int count = 0;
+                for (int step = first; step >= finest; step >>= 1) {
+                    count++;
+                }
+                for (int l = limit; l < dwellLimit; l *= 2) {
+                    count++;
+                }
+                int index = 0;
+                for (int step = first; step >= finest; step >>= 1) {
+                    if (!pass(step, limit, token, index++, count)) {
+                        return !cancel.isCancelled();
+                    }
+                }
+                // Spend any time left on raising the dwell limit.
+                while (limit < dwellLimit) {
+                    int previous = limit;
+                    limit = Math.min(dwellLimit, limit * 2);
+                    if (!pass(finest, limit, token, index, count)) {
+                        if (cancel.isCancelled()) {
+                            return false;
+                        }
+                        // Not a mix of two limits, but all at the last.
+                        recolor(finest, previous, progress(index, count));
+                        return true;
+                    }
+                    index++;
+                }
+                return true;
+            } finally {
+                deadline.cancel();
+            }
+        }
+    }
+
+    /**
+     * A token that is cancelled when the time runs out, or when the
+     * token of the job is cancelled, and is paused whenever the token
+     * of the job is paused.
+     */
+    private static class DeadlineToken extends CancelToken {
+        /** Token of the job. */
+        private CancelToken outer;
+
+        /**
+         * Constructs a DeadlineToken.
+         *
+         * @param  outer  token of the job.
+         */
+        public DeadlineToken(CancelToken outer) {
+            this.outer = outer;
+        }
+
+        /**
+         * Runs the given work once the token of the job is resumed.
+         *
+         * @param  task  work to run.
+         */
+        public void whenResumed(Runnable task) {
+            outer.whenResumed(task);
+        }
+
+        /**
+         * Returns the time at which the token of the job was paused.
+         *
+         * @return  time in milliseconds.
+         */
+        public long getPausedAt() {
+            return outer.getPausedAt();
+        }
+
+        /**
+         * Indicates if the time has run out or the job was cancelled.
+         *
+         * @return  true if cancelled, false otherwise.
+         */
+        public boolean isCancelled() {
+            return super.isCancelled() || outer.isCancelled();
+        }
+
+        /**
+         * Indicates if the token of the job is paused.
+         *
+         * @return  true if paused, false otherwise.
+         */
+        public boolean isPaused() {
+            return outer.isPaused();
+        }
+    }
+}
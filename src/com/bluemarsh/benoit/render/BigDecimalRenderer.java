@@ -23,9 +23,6 @@
 package com.bluemarsh.benoit.render;
 
 import com.bluemarsh.benoit.model.Parameters;
-import java.awt.Color;
-import java.awt.Graphics;
-import java.awt.Image;
 import java.math.BigDecimal;
 
 /**
@@ -36,118 +33,135 @@ import java.math.BigDecimal;
 public class BigDecimalRenderer extends AbstractRenderer {
 
     /**
-     * Renders the mandelbrot set to the given image.
+     * Creates the kernel that computes the points of the given region
+     * using BigDecimal arithmetic.
      *
-     * @param  image   image to render to.
-     * @param  params  boundaries of region to draw.
+     * @param  params      boundaries of region to draw.
+     * @param  width       width of the image.
+     * @param  height      height of the image.
+     * @param  dwellLimit  maximum number of iterations per point.
+     * @return  new kernel.
      */
-    public void render(Image image, Parameters params) {
-        int width = image.getWidth(null);
-        int height = image.getHeight(null);
-        if (width == -1 || height == -1) {
-            // Image is not ready yet.
-            throw new IllegalArgumentException("image not loaded");
-        }
-        Graphics g = image.getGraphics();
-
-        BigDecimal minX = params.getMinX().bigValue();
-        BigDecimal maxX = params.getMaxX().bigValue();
-        BigDecimal minY = params.getMinY().bigValue();
-        BigDecimal maxY = params.getMaxY().bigValue();
-
-        // Scale for the big decimals (i.e. number of digits).
-        int numDigits = params.getMinX().getScale();
-
-        // The explicit scale is needed, otherwise it defaults to two.
-        BigDecimal dx = maxX.subtract(minX).divide(
-            new BigDecimal((double) width), numDigits,
-            BigDecimal.ROUND_HALF_UP);
-        BigDecimal dy = maxY.subtract(minY).divide(
-            new BigDecimal((double) height), numDigits,
-            BigDecimal.ROUND_HALF_UP);
-
-        int dwellLimit = 100;
-        // avoid using sqrt() repeatedly by squaring the escape radius.
-        double escapeRadius = 4.0; // 2.0 ^ 2
-
-        // Use successive-refinement to give a rough representation
-        // of the region before proceeding to more detailed images.
-        boolean interrupted = false;
-        BigDecimal two = new BigDecimal(2.0);
-        for (int step = 16, base = 0; step > 0; step >>= 1, base += 20) {
-            for (int x = 0; x < width; x += step) {
-                BigDecimal cr = dx.multiply(new BigDecimal((double) x));
-                cr = cr.setScale(numDigits, BigDecimal.ROUND_HALF_UP);
-                cr = cr.add(minX);
-                for (int y = 0; y < height; y += step) {
-
-                    if (step != 16 && ((x / step) % 2) == 0
-                        && ((y / step) % 2) == 0) {
-                        continue;
-                    }
-
-                    BigDecimal ci = dy.multiply(new BigDecimal((double) y));
-                    ci = ci.setScale(numDigits, BigDecimal.ROUND_HALF_UP);
-                    ci = ci.add(minY);
-                    BigDecimal zr = cr;
-                    BigDecimal zi = ci;
-                    double m;
-                    int iter = 1;
-
-                    do {
-                        // z = z * z + c;
-                        BigDecimal zrzr = zr.multiply(zr);
-                        // Must set scale or number of digits explodes.
-                        zrzr = zrzr.setScale(numDigits,
-                                             BigDecimal.ROUND_HALF_UP);
-                        BigDecimal zizi = zi.multiply(zi);
-                        zizi = zizi.setScale(numDigits,
-                                             BigDecimal.ROUND_HALF_UP);
-                        BigDecimal r = zrzr.subtract(zizi);
-                        BigDecimal zrzi = zr.multiply(zi);
-                        zrzi = zrzi.setScale(numDigits,
-                                             BigDecimal.ROUND_HALF_UP);
-                        zi = two.multiply(zrzi);
-                        zi = zi.setScale(numDigits,
-                                         BigDecimal.ROUND_HALF_UP);
-                        zi = zi.add(ci);
-                        zr = r.add(cr);
+    protected Kernel createKernel(Parameters params, int width, int height,
+                                  int dwellLimit) {
+        return new BigDecimalKernel(params, width, height, dwellLimit);
+    }
 
-                        // magnitude (would use sqrt() normally)
-                        zrzr = zr.multiply(zr);
-                        zrzr = zrzr.setScale(numDigits,
-                                             BigDecimal.ROUND_HALF_UP);
-                        zizi = zi.multiply(zi);
-                        zizi = zizi.setScale(numDigits,
-                                             BigDecimal.ROUND_HALF_UP);
-                        m = zrzr.add(zizi).doubleValue();
-                        iter++;
-                    } while (m < escapeRadius && iter < dwellLimit);
+    /**
+     * Use successive-refinement to give a rough representation of the
+     * region before proceeding to more detailed images. Starting with a
+     * step of 16 implies five passes. The tiles of each pass are shared
+     * among the render threads, and each pass finishes before the next
+     * one begins, so the passes still appear one after another.
+     *
+     * @return  sample step of the first pass.
+     */
+    protected int getCoarsestStep() {
+        return 16;
+    }
 
-                    float h = (float) iter / (float) dwellLimit;
-                    float b = 1.0f - h * h;
-                    g.setColor(Color.getHSBColor(h, 0.8f, b));
-                    g.fillRect(x, y, step, step);
-                }
+    /**
+     * Returns the name under which the settings tuned for this renderer
+     * are kept.
+     *
+     * @return  tuning key.
+     */
+    protected String getTuningKey() {
+        return "big";
+    }
 
-                if (Thread.interrupted()) {
-                    interrupted = true;
-                    step = 0;
-                    break;
-                }
-                if (x % 2 == 0) {
-                    // For now the starting value for step of 16 implies
-                    // five phases, so 100% / 5 = 20%, hence the value
-                    // of 20 here. The 'base' value steps through the
-                    // values 0, 20, 40, 60, and 80.
-                    fireUpdate(20 * x / width + base);
-                }
-            }
+    /**
+     * Computes points using BigDecimal arithmetic.
+     */
+    protected static class BigDecimalKernel extends Kernel {
+        /** Number of iterations between checks for cancellation. */
+        private static final int CANCEL_INTERVAL = 16;
+        /** The constant two. */
+        private static final BigDecimal TWO = new BigDecimal(2.0);
+        /** Minimum x value of the region. */
+        private BigDecimal minX;
+        /** Minimum y value of the region. */
+        private BigDecimal minY;
+        /** Width of each pixel. */
+        private BigDecimal dx;
+        /** Height of each pixel. */
+        private BigDecimal dy;
+        /** Scale for the big decimals (i.e. number of digits). */
+        private int numDigits;
+
+        /**
+         * Constructs a BigDecimalKernel.
+         *
+         * @param  params      boundaries of region to draw.
+         * @param  width       width of the image.
+         * @param  height      height of the image.
+         * @param  dwellLimit  maximum number of iterations per point.
+         */
+        public BigDecimalKernel(Parameters params, int width, int height,
+                                int dwellLimit) {
+            super(dwellLimit);
+            minX = params.getMinX().bigValue();
+            BigDecimal maxX = params.getMaxX().bigValue();
+            minY = params.getMinY().bigValue();
+            BigDecimal maxY = params.getMaxY().bigValue();
+            numDigits = params.getMinX().getScale();
+
+            // The explicit scale is needed, otherwise it defaults to two.
+            dx = maxX.subtract(minX).divide(
+                new BigDecimal((double) width), numDigits,
+                BigDecimal.ROUND_HALF_UP);
+            dy = maxY.subtract(minY).divide(
+                new BigDecimal((double) height), numDigits,
+                BigDecimal.ROUND_HALF_UP);
+            setMirror(minY.doubleValue(), dy.doubleValue(), height);
         }
 
-        // Fire off the final update.
-        if (!interrupted) {
-            fireUpdate(100);
+        /**
+         * Computes the escape-iteration count for the given pixel.
+         *
+         * @param  x  column of pixel.
+         * @param  y  row of pixel.
+         * @return  dwell of the point, or zero if cancelled.
+         */
+        public int dwell(int x, int y) {
+            BigDecimal cr = dx.multiply(new BigDecimal((double) x));
+            cr = cr.setScale(numDigits, BigDecimal.ROUND_HALF_UP);
+            cr = cr.add(minX);
+            BigDecimal ci = dy.multiply(new BigDecimal((double) y));
+            ci = ci.setScale(numDigits, BigDecimal.ROUND_HALF_UP);
+            ci = ci.add(minY);
+            BigDecimal zr = cr;
+            BigDecimal zi = ci;
+            double m;
+            int iter = 1;
+
+            do {
+                // z = z * z + c;
+                BigDecimal zrzr = zr.multiply(zr);
+                // Must set scale or number of digits explodes.
+                zrzr = zrzr.setScale(numDigits, BigDecimal.ROUND_HALF_UP);
+                BigDecimal zizi = zi.multiply(zi);
+                zizi = zizi.setScale(numDigits, BigDecimal.ROUND_HALF_UP);
+                BigDecimal r = zrzr.subtract(zizi);
+                BigDecimal zrzi = zr.multiply(zi);
+                zrzi = zrzi.setScale(numDigits, BigDecimal.ROUND_HALF_UP);
+                zi = TWO.multiply(zrzi);
+                zi = zi.setScale(numDigits, BigDecimal.ROUND_HALF_UP);
+                zi = zi.add(ci);
+                zr = r.add(cr);
+
+                // magnitude (would use sqrt() normally)
+                zrzr = zr.multiply(zr);
+                zrzr = zrzr.setScale(numDigits, BigDecimal.ROUND_HALF_UP);
+                zizi = zi.multiply(zi);
+                zizi = zizi.setScale(numDigits, BigDecimal.ROUND_HALF_UP);
+                m = zrzr.add(zizi).doubleValue();
+                iter++;
+                if (iter % CANCEL_INTERVAL == 0 && isCancelled()) {
+                    return 0;
+                }
+            } while (m < ESCAPE_RADIUS && iter < dwellLimit);
+            return iter;
         }
     }
 }
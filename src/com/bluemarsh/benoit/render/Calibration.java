@@ -0,0 +1,298 @@
+/*********************************************************************
+ *
+ *      Copyright (C) 2002-2014 Nathan Fiedler
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * $Id$
+ *
+ ********************************************************************/
+
+package com.bluemarsh.benoit.render;
+
+import com.bluemarsh.benoit.model.BenoitNumber;
+import com.bluemarsh.benoit.model.Parameters;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds the render settings that suit this machine by timing short
+ * renders of a standard region with each of the renderers. For each
+ * renderer the tile size giving the fastest render is chosen, and the
+ * number of threads is the fewest that render about as fast as the
+ * most. The results are saved in the tuning of the machine, and apply
+ * to the renders started afterward.
+ *
+ * <p>The renders are timed on an executor of their own, while the
+ * application-wide executor is paused, so that the timings are not
+ * disturbed by other renders nor the other renders by the timings.</p>
+ *
+ * @author  Nathan Fiedler
+ */
+public class Calibration {
+    /** Tile sizes to try. */
+    private static final int[] TILE_SIZES = { 16, 32, 64 };
+    /** Numbers of interleaved lanes to try. */
+    private static final int[] LANES = { 1, 2, 4 };
+    /** Renders within this fraction of the fastest are as good. */
+    private static final double TOLERANCE = 0.05;
+    /** Number of times each render is timed, keeping the best. */
+    private static final int TRIALS = 2;
+    /** Where the results are kept. */
+    private Tuning tuning;
+
+    /**
+     * Constructs a Calibration.
+     *
+     * @param  tuning  where the results are kept.
+     */
+    public Calibration(Tuning tuning) {
+        this.tuning = tuning;
+    }
+
+    /**
+     * Returns the benchmarks to run, one for each renderer. The first
+     * benchmark is also used to choose the number of threads. New types
+     * of renderer should add a benchmark here.
+     *
+     * @return  list of Benchmark.
+     */
+    protected List createBenchmarks() {
+        List list = new ArrayList();
+        list.add(new Benchmark(new FastDoublesRenderer(), 320, 240, 256));
+        list.add(new Benchmark(new BigDecimalRenderer(), 48, 36, 48));
+        return list;
+    }
+
+    /**
+     * Runs the benchmarks, saves the results in the tuning, and returns
+     * a summary of the results.
+     *
+     * @return  summary of the chosen settings.
+     * @throws  IOException
+     *          if the results could not be saved.
+     */
+    public String run() throws IOException {
+        RenderExecutor shared = RenderExecutor.getDefault();
+        boolean paused = shared.isPaused();
+        shared.setPaused(true);
+        int cpus = Runtime.getRuntime().availableProcessors();
+        RenderExecutor executor = new RenderExecutor(cpus, cpus);
+        try {
+            return run(executor, cpus);
+        } finally {
+            executor.shutdown();
+            shared.setPaused(paused);
+        }
+    }
+
+    /**
+     * Runs the benchmarks on the given executor and saves the results.
+     *
+     * @param  executor  executor on which to time the renders.
+     * @param  cpus      number of processors.
+     * @return  summary of the chosen settings.
+     * @throws  IOException
+     *          if the results could not be saved.
+     */
+    private String run(RenderExecutor executor, int cpus)
+        throws IOException {
+        StringBuffer summary = new StringBuffer();
+        List benchmarks = createBenchmarks();
+        for (int i = 0; i < benchmarks.size(); i++) {
+            Benchmark bench = (Benchmark) benchmarks.get(i);
+            bench.setExecutor(executor);
+            int best = 0;
+            long bestTime = Long.MAX_VALUE;
+            for (int j = 0; j < TILE_SIZES.length; j++) {
+                int size = TILE_SIZES[j];
+                if (!bench.fits(size)) {
+                    continue;
+                }
+                long time = bench.time(size, cpus);
+                if (time < bestTime) {
+                    best = size;
+                    bestTime = time;
+                }
+            }
+            if (best > 0) {
+                String key = bench.renderer.getTuningKey();
+                tuning.setInt(Tuning.TILE_SIZE + key, best);
+                summary.append(key).append(" tile size: ").append(best);
+                summary.append('\n');
+                if (bench.renderer instanceof FastDoublesRenderer) {
+                    int lanes = chooseLanes(bench, best, cpus);
+                    tuning.setInt(FastDoublesRenderer.LANES + key, lanes);
+                    summary.append(key).append(" lanes: ").append(lanes);
+                    summary.append('\n');
+                }
+            }
+            if (i == 0 && best > 0) {
+                int threads = chooseThreads(bench, best, cpus);
+                tuning.setInt(Tuning.THREADS, threads);
+                summary.append("threads: ").append(threads).append('\n');
+            }
+        }
+        tuning.setInt(Tuning.PROCESSORS, cpus);
+        tuning.save();
+        RenderExecutor.applyTuning();
+        return summary.toString();
+    }
+
+    /**
+     * Chooses the number of points the double kernel computes together,
+     * by timing each against the others, including the plain loop.
+     *
+     * @param  bench     benchmark to time.
+     * @param  tileSize  tile size to use.
+     * @param  threads   number of threads to use.
+     * @return  number of lanes.
+     */
+    private int chooseLanes(Benchmark bench, int tileSize, int threads) {
+        FastDoublesRenderer renderer = (FastDoublesRenderer) bench.renderer;
+        int best = 1;
+        long bestTime = Long.MAX_VALUE;
+        for (int i = 0; i < LANES.length; i++) {
+            renderer.setLanes(LANES[i]);
+            long time = bench.time(tileSize, threads);
+            // Prefer the plain loop unless clearly beaten.
+            if (i == 0 || time < bestTime * (1.0 - TOLERANCE)) {
+                best = LANES[i];
+                bestTime = time;
+            }
+        }
+        renderer.setLanes(best);
+        return best;
+    }
+
+    /**
+     * Chooses the number of threads, which is the fewest threads that
+     * render about as fast as the most.
+     *
+     * @param  bench     benchmark to time.
+     * @param  tileSize  tile size to use.
+     * @param  cpus      number of processors.
+     * @return  number of threads.
+     */
+    private int chooseThreads(Benchmark bench, int tileSize, int cpus) {
+        int[] counts = { 1, Math.max(1, cpus / 2), cpus };
+        long[] times = new long[counts.length];
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < counts.length; i++) {
+            if (i > 0 && counts[i] == counts[i - 1]) {
+                times[i] = times[i - 1];
+            } else {
+                times[i] = bench.time(tileSize, counts[i]);
+            }
+            best = Math.min(best, times[i]);
+        }
+        for (int i = 0; i < counts.length; i++) {
+            if (times[i] <= best * (1.0 + TOLERANCE)) {
+                return counts[i];
+            }
+        }
+        return cpus;
+    }
+
+    /**
+     * A short render with one particular renderer.
+     */
+    protected static class Benchmark {
+        /** Renderer being timed. */
+        private AbstractRenderer renderer;
+        /** Width of the image. */
+        private int width;
+        /** Height of the image. */
+        private int height;
+        /** Dwell limit of the render. */
+        private int dwellLimit;
+        /** Executor on which the render is timed. */
+        private RenderExecutor executor;
+        /** Client of the executor on whose behalf the render runs. */
+        private RenderExecutor.Client client;
+
+        /**
+         * Constructs a Benchmark.
+         *
+         * @param  renderer    renderer to time.
+         * @param  width       width of the image.
+         * @param  height      height of the image.
+         * @param  dwellLimit  dwell limit of the render.
+         */
+        public Benchmark(AbstractRenderer renderer, int width, int height,
+                         int dwellLimit) {
+            this.renderer = renderer;
+            this.width = width;
+            this.height = height;
+            this.dwellLimit = dwellLimit;
+        }
+
+        /**
+         * Indicates if the given tile size suits the renderer and image.
+         *
+         * @param  size  tile size.
+         * @return  true if the size may be used.
+         */
+        public boolean fits(int size) {
+            return size % renderer.getCoarsestStep() == 0
+                && size <= Math.max(width, height);
+        }
+
+        /**
+         * Sets the executor on which the render is timed.
+         *
+         * @param  executor  render executor.
+         */
+        public void setExecutor(RenderExecutor executor) {
+            this.executor = executor;
+            client = executor.createClient("calibration");
+        }
+
+        /**
+         * Times the render with the given settings.
+         *
+         * @param  tileSize  tile size to use.
+         * @param  threads   number of threads to use.
+         * @return  best time of the trials, in nanoseconds.
+         */
+        public long time(int tileSize, int threads) {
+            executor.setMaxThreads(threads);
+            executor.setMaxPerClient(threads);
+            renderer.setTileSize(tileSize);
+            long best = Long.MAX_VALUE;
+            for (int i = 0; i < TRIALS; i++) {
+                // The region holds a mix of cheap and expensive points.
+                Parameters params = new Parameters(
+                    new BenoitNumber(-0.75), new BenoitNumber(-0.74),
+                    new BenoitNumber(0.1), new BenoitNumber(0.11));
+                params.setType(renderer.getTuningKey().equals("big")
+                               ? BenoitNumber.BIG_TYPE
+                               : BenoitNumber.DOUBLE_TYPE);
+                params.adjustAspect(width, height);
+                BufferedImage image = new BufferedImage(
+                    width, height, BufferedImage.TYPE_INT_RGB);
+                RenderJob job = new RenderJob(image, params, dwellLimit);
+                job.setClient(client);
+                long start = System.nanoTime();
+                renderer.render(job);
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            renderer.setTileSize(0);
+            return best;
+        }
+    }
+}
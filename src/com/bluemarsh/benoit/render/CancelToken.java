@@ -0,0 +1,171 @@
+/*********************************************************************
+ *
+ *      Copyright (C) 2002-2014 Nathan Fiedler
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * $Id$
+ *
+ ********************************************************************/
+
+package com.bluemarsh.benoit.render;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A CancelToken signals that a render should stop. Renderers check the
+ * token between points, and the kernels check it periodically while
+ * computing a single point, so a cancelled render winds down quickly
+ * without anyone having to wait for it. One token may be shared by
+ * several jobs that together make up a single render.
+ *
+ * <p>The token may also be paused, in which case the renderers put
+ * their work aside between points, to be taken up again when the token
+ * is resumed or cancelled. No thread is held while the token is
+ * paused.</p>
+ *
+ * @author  Nathan Fiedler
+ */
+public class CancelToken {
+    /** True once the token has been cancelled. */
+    private volatile boolean cancelled;
+    /** True while the token is paused. */
+    private volatile boolean paused;
+    /** Time at which the token was last paused. */
+    private volatile long pausedAt;
+    /** Work put aside until the token is resumed or cancelled. */
+    private List waiting = new ArrayList();
+
+    /**
+     * Cancels the token. Returns immediately; the work associated with
+     * the token stops at its next opportunity.
+     */
+    public void cancel() {
+        synchronized (this) {
+            cancelled = true;
+            notifyAll();
+        }
+        runWaiting();
+    }
+
+    /**
+     * Indicates if the token has been cancelled.
+     *
+     * @return  true if cancelled, false otherwise.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Returns the time at which the token was last paused.
+     *
+     * @return  time in milliseconds, or zero if never paused.
+     */
+    public long getPausedAt() {
+        return pausedAt;
+    }
+
+    /**
+     * Indicates if the token is paused.
+     *
+     * @return  true if paused, false otherwise.
+     */
+    public boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * Pauses the token. Returns immediately; the work associated with
+     * the token waits at its next opportunity.
+     */
+    public synchronized void pause() {
+        if (!paused) {
+            pausedAt = System.currentTimeMillis();
+            paused = true;
+        }
+    }
+
+    /**
+     * Resumes the work associated with a paused token. The work put
+     * aside while paused is run on the calling thread.
+     */
+    public void resume() {
+        synchronized (this) {
+            paused = false;
+        }
+        runWaiting();
+    }
+
+    /**
+     * Runs the work put aside while the token was paused.
+     */
+    private void runWaiting() {
+        List tasks;
+        synchronized (this) {
+            if (waiting.isEmpty()) {
+                return;
+            }
+            tasks = waiting;
+            waiting = new ArrayList();
+        }
+        for (int i = 0; i < tasks.size(); i++) {
+            ((Runnable) tasks.get(i)).run();
+        }
+    }
+
+    /**
+     * Waits for the given length of time, or until the token is
+     * cancelled or the thread is interrupted, whichever comes first.
+     *
+     * @param  millis  time to wait in milliseconds.
+     * @return  true if the time elapsed, false if cancelled or
+     *          interrupted.
+     */
+    public synchronized boolean sleep(long millis) {
+        long end = System.currentTimeMillis() + millis;
+        long remaining = millis;
+        while (!cancelled && remaining > 0) {
+            try {
+                wait(remaining);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            remaining = end - System.currentTimeMillis();
+        }
+        return !cancelled;
+    }
+
+    /**
+     * Runs the given work once the token is no longer paused. If the
+     * token is not paused, or has been cancelled, the work is run now
+     * on the calling thread; otherwise it is put aside and run by the
+     * thread that resumes or cancels the token. The work must be brief,
+     * such as submitting a task to the render executor.
+     *
+     * @param  task  work to run.
+     */
+    public void whenResumed(Runnable task) {
+        synchronized (this) {
+            if (paused && !cancelled) {
+                waiting.add(task);
+                return;
+            }
+        }
+        task.run();
+    }
+}
@@ -0,0 +1,369 @@
+/*********************************************************************
+ *
+ *      Copyright (C) 2002-2014 Nathan Fiedler
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * $Id$
+ *
+ ********************************************************************/
+
+package com.bluemarsh.benoit.render;
+
+import com.bluemarsh.benoit.model.BenoitNumber;
+import com.bluemarsh.benoit.model.Parameters;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A Checkpoint records the progress of a long render in a file, so
+ * that a render that was stopped, or a process that was killed, can
+ * later resume where it left off. The checkpoint holds the region
+ * boundaries, number type, scale, dwell limit and the samples computed
+ * so far; a resumed render computes only the samples that are missing.
+ * It is saved periodically as tiles are finished, and whenever the
+ * render is paused.
+ *
+ * <p>Each checkpoint carries a random identifier, written to its file,
+ * so that a render only ever deletes the file it wrote itself and not
+ * the checkpoint of some other render.</p>
+ *
+ * @author  Nathan Fiedler
+ */
+public class Checkpoint {
+    /** Identifies a checkpoint file. */
+    private static final int MAGIC = 0x42434b50;
+    /** Version of the checkpoint file format. */
+    private static final int VERSION = 2;
+    /** Logger. */
+    private static Logger logger = Logger.getLogger(
+        "com.bluemarsh.benoit.render");
+    /** File to which the checkpoint is saved. */
+    private File file;
+    /** Boundaries of the region being rendered. */
+    private Parameters params;
+    /** Maximum number of iterations per point. */
+    private int dwellLimit;
+    /** Samples computed so far. */
+    private DwellData samples;
+    /** Identifies this checkpoint in its file. */
+    private long id;
+    /** True once this checkpoint has been written to its file. */
+    private boolean saved;
+    /** Milliseconds between periodic saves. */
+    private long interval;
+    /** Time at which the checkpoint was last saved. */
+    private long savedAt;
+
+    /**
+     * Constructs a Checkpoint for a new render.
+     *
+     * @param  file        file to which the checkpoint is saved.
+     * @param  params      boundaries of the region being rendered.
+     * @param  dwellLimit  maximum number of iterations per point.
+     * @param  samples     samples of the render.
+     */
+    public Checkpoint(File file, Parameters params, int dwellLimit,
+                      DwellData samples) {
+        this.file = file;
+        this.params = params;
+        this.dwellLimit = dwellLimit;
+        this.samples = samples;
+        id = new Random().nextLong();
+        savedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Deletes the checkpoint file, once the render has finished. The
+     * file is deleted only if it still holds this checkpoint; if it was
+     * never written by this checkpoint, or has since been replaced by
+     * that of another render, it is left alone.
+     */
+    public synchronized void delete() {
+        if (!saved || !file.exists()) {
+            return;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new GZIPInputStream(
+                new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION
+                    || in.readLong() != id) {
+                    return;
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException ioe) {
+            return;
+        }
+        if (!file.delete()) {
+            logger.warning("could not delete checkpoint " + file);
+        }
+    }
+
+    /**
+     * Returns the dwell limit of the render.
+     *
+     * @return  maximum number of iterations per point.
+     */
+    public int getDwellLimit() {
+        return dwellLimit;
+    }
+
+    /**
+     * Returns the boundaries of the region being rendered.
+     *
+     * @return  region boundaries.
+     */
+    public Parameters getParameters() {
+        return params;
+    }
+
+    /**
+     * Returns the samples computed so far.
+     *
+     * @return  dwell data.
+     */
+    public DwellData getSamples() {
+        return samples;
+    }
+
+    /**
+     * Reads a checkpoint from the given file.
+     *
+     * @param  file  file from which to read.
+     * @return  the checkpoint, or null if the file does not exist.
+     * @throws  IOException
+     *          if the file could not be read or is not a checkpoint.
+     */
+    public static Checkpoint load(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = open(file);
+        try {
+            long id = in.readLong();
+            Parameters params = readParameters(in);
+            int dwellLimit = in.readInt();
+            int width = in.readInt();
+            int height = in.readInt();
+            DwellData samples = new DwellData(width, height);
+            samples.setDwellLimit(dwellLimit);
+            for (int x = 0; x < width; x++) {
+                for (int y = 0; y < height; y++) {
+                    samples.set(x, y, in.readInt());
+                }
+            }
+            Checkpoint cp = new Checkpoint(file, params, dwellLimit,
+                                           samples);
+            cp.id = id;
+            cp.saved = true;
+            return cp;
+        } catch (IllegalArgumentException iae) {
+            throw new IOException("corrupt checkpoint file: " + file);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads only the region of the checkpoint in the given file, which
+     * is at the start of the file, leaving the samples unread. This is
+     * cheap enough to do on the event thread.
+     *
+     * @param  file  file from which to read.
+     * @return  boundaries of the region, or null if the file does not
+     *          exist.
+     * @throws  IOException
+     *          if the file could not be read or is not a checkpoint.
+     */
+    public static Parameters loadParameters(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = open(file);
+        try {
+            in.readLong();
+            return readParameters(in);
+        } catch (IllegalArgumentException iae) {
+            throw new IOException("corrupt checkpoint file: " + file);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Opens a checkpoint file and reads its magic number and version.
+     *
+     * @param  file  file to open.
+     * @return  stream positioned after the version.
+     * @throws  IOException
+     *          if the file could not be read or is not a checkpoint.
+     */
+    private static DataInputStream open(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+            new GZIPInputStream(new FileInputStream(file))));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("not a checkpoint file: " + file);
+            }
+        } catch (IOException ioe) {
+            in.close();
+            throw ioe;
+        }
+        return in;
+    }
+
+    /**
+     * Reads the boundaries of the region of a checkpoint.
+     *
+     * @param  in  stream positioned at the region.
+     * @return  boundaries of the region.
+     * @throws  IOException
+     *          if the stream could not be read.
+     */
+    private static Parameters readParameters(DataInputStream in)
+        throws IOException {
+        int type = in.readInt();
+        int scale = in.readInt();
+        BenoitNumber minX = BenoitNumber.valueOf(in.readUTF(), type);
+        BenoitNumber maxX = BenoitNumber.valueOf(in.readUTF(), type);
+        BenoitNumber minY = BenoitNumber.valueOf(in.readUTF(), type);
+        BenoitNumber maxY = BenoitNumber.valueOf(in.readUTF(), type);
+        Parameters params = new Parameters(minX, maxX, minY, maxY);
+        params.setScale(scale);
+        return params;
+    }
+
+    /**
+     * Indicates if this checkpoint is for a render of the given region,
+     * image size and dwell limit, and so may be used to resume it.
+     *
+     * @param  params      boundaries of the region.
+     * @param  width       width of the image.
+     * @param  height      height of the image.
+     * @param  dwellLimit  maximum number of iterations per point.
+     * @return  true if the checkpoint matches, false otherwise.
+     */
+    public boolean matches(Parameters params, int width, int height,
+                           int dwellLimit) {
+        return this.params.equals(params)
+            && this.params.getMinX().getType() == params.getMinX().getType()
+            && this.params.getScale() == params.getScale()
+            && this.dwellLimit == dwellLimit
+            && samples.getWidth() == width
+            && samples.getHeight() == height;
+    }
+
+    /**
+     * Saves the checkpoint to its file. The data is written to a
+     * temporary file first, so a crash while saving leaves the previous
+     * checkpoint intact. Errors are logged rather than thrown, as a
+     * failed checkpoint should not stop the render.
+     */
+    public synchronized void save() {
+        savedAt = System.currentTimeMillis();
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            File dir = file.getAbsoluteFile().getParentFile();
+            if (dir != null && !dir.exists()) {
+                dir.mkdirs();
+            }
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new GZIPOutputStream(
+                    new FileOutputStream(temp))));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(id);
+                out.writeInt(params.getMinX().getType());
+                out.writeInt(params.getScale());
+                out.writeUTF(params.getMinX().toString());
+                out.writeUTF(params.getMaxX().toString());
+                out.writeUTF(params.getMinY().toString());
+                out.writeUTF(params.getMaxY().toString());
+                out.writeInt(dwellLimit);
+                int width = samples.getWidth();
+                int height = samples.getHeight();
+                out.writeInt(width);
+                out.writeInt(height);
+                for (int x = 0; x < width; x++) {
+                    for (int y = 0; y < height; y++) {
+                        out.writeInt(samples.get(x, y));
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            if (file.exists() && !file.delete()) {
+                throw new IOException("could not replace " + file);
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("could not rename " + temp);
+            }
+            saved = true;
+        } catch (IOException ioe) {
+            logger.warning("could not save checkpoint: " + ioe);
+            temp.delete();
+        }
+    }
+
+    /**
+     * Saves the checkpoint if it has not been saved after the given
+     * time, such as the time at which the render was paused.
+     *
+     * @param  since  time in milliseconds.
+     */
+    public synchronized void saveIfOlder(long since) {
+        if (savedAt <= since) {
+            save();
+        }
+    }
+
+    /**
+     * Sets the time between periodic saves. A value of zero disables
+     * the periodic saves.
+     *
+     * @param  millis  interval in milliseconds.
+     */
+    public void setInterval(long millis) {
+        interval = millis;
+    }
+
+    /**
+     * Notes that a tile was finished at full resolution, and saves the
+     * checkpoint if the save interval has elapsed. The samples of the
+     * tile are already held in the dwell data.
+     *
+     * @param  tile  the finished tile.
+     */
+    public synchronized void tileDone(Tile tile) {
+        if (interval > 0
+            && System.currentTimeMillis() - savedAt >= interval) {
+            save();
+        }
+    }
+}
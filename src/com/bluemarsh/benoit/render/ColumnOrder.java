@@ -0,0 +1,51 @@
+/*********************************************************************
+ *
+ *      Copyright (C) 2002-2014 Nathan Fiedler
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * $Id$
+ *
+ ********************************************************************/
+
+package com.bluemarsh.benoit.render;
+
+/**
+ * Orders the tiles column by column, from the left of the image to the
+ * right, and from top to bottom within each column.
+ *
+ * @author  Nathan Fiedler
+ */
+public class ColumnOrder implements TileOrder {
+
+    /**
+     * Returns the priority of the given tile.
+     *
+     * @param  tile  tile to be ranked.
+     * @return  priority of the tile.
+     */
+    public double priority(Tile tile) {
+        return tile.getX() * 1.0e6 + tile.getY();
+    }
+
+    /**
+     * Does nothing as this order never changes.
+     *
+     * @return  always false.
+     */
+    public boolean update() {
+        return false;
+    }
+}
@@ -0,0 +1,131 @@
+/*********************************************************************
+ *
+ *      Copyright (C) 2002-2014 Nathan Fiedler
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * $Id$
+ *
+ ********************************************************************/
+
+package com.bluemarsh.benoit.render;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Orders the tiles by their estimated cost, most expensive first. The
+ * cost of a tile is estimated from the dwell of the points sampled in
+ * it by a coarser pass, or provisionally by a preview, since points
+ * that take many iterations, such as those inside the set, dominate the
+ * time spent on a tile. Starting on
+ * the expensive tiles first means the threads are not left waiting on
+ * one slow tile at the end of a pass.
+ *
+ * <p>If another order is given, the whole part of its priority is kept,
+ * so the tiles are grouped as before (for instance into the rings of a
+ * spiral), and the tiles are ordered by cost within each group.</p>
+ *
+ * @author  Nathan Fiedler
+ */
+public class CostOrder implements TileOrder {
+    /** Order whose grouping is kept, may be null. */
+    private TileOrder inner;
+    /** Samples from the coarser pass. */
+    private DwellData samples;
+    /** Distance between the sampled points. */
+    private int sampleStep;
+    /** Estimated costs of the tiles seen so far, keyed by tile. */
+    private Map costs;
+    /** Highest estimated cost seen so far, for normalizing. */
+    private double maxCost;
+
+    /**
+     * Constructs a CostOrder.
+     *
+     * @param  inner       order whose grouping is kept, may be null.
+     * @param  samples     samples from the coarser pass.
+     * @param  sampleStep  distance between the sampled points.
+     */
+    public CostOrder(TileOrder inner, DwellData samples, int sampleStep) {
+        this.inner = inner;
+        this.samples = samples;
+        this.sampleStep = sampleStep;
+        costs = new HashMap();
+    }
+
+    /**
+     * Returns the estimated cost of rendering the given tile, which is
+     * the mean dwell of the points sampled within the tile, multiplied
+     * by the area of the tile.
+     *
+     * @param  tile  tile to be estimated.
+     * @return  estimated cost, in iterations.
+     */
+    public synchronized double getCost(Tile tile) {
+        Double cached = (Double) costs.get(tile);
+        if (cached != null) {
+            return cached.doubleValue();
+        }
+        int right = tile.getX() + tile.getWidth();
+        int bottom = tile.getY() + tile.getHeight();
+        int x0 = (tile.getX() + sampleStep - 1) / sampleStep * sampleStep;
+        int y0 = (tile.getY() + sampleStep - 1) / sampleStep * sampleStep;
+        long sum = 0;
+        int count = 0;
+        for (int x = x0; x < right; x += sampleStep) {
+            for (int y = y0; y < bottom; y += sampleStep) {
+                int dwell = samples.getEstimate(x, y);
+                if (dwell > 0) {
+                    sum += dwell;
+                    count++;
+                }
+            }
+        }
+        double cost = count == 0 ? 0.0
+            : (double) sum / count * tile.getWidth() * tile.getHeight();
+        costs.put(tile, Double.valueOf(cost));
+        maxCost = Math.max(maxCost, cost);
+        return cost;
+    }
+
+    /**
+     * Returns the priority of the given tile.
+     *
+     * @param  tile  tile to be ranked.
+     * @return  priority of the tile.
+     */
+    public double priority(Tile tile) {
+        double cost = getCost(tile);
+        if (inner == null) {
+            return -cost;
+        }
+        double group = Math.floor(inner.priority(tile.getRoot()));
+        double norm;
+        synchronized (this) {
+            norm = maxCost > 0.0 ? cost / maxCost : 0.0;
+        }
+        return group + (1.0 - norm) * 0.999;
+    }
+
+    /**
+     * Updates the order this one is grouped by.
+     *
+     * @return  true if the grouping may have changed, false otherwise.
+     */
+    public boolean update() {
+        return inner != null && inner.update();
+    }
+}
@@ -0,0 +1,330 @@
+/*********************************************************************
+ *
+ *      Copyright (C) 2002-2014 Nathan Fiedler
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * $Id$
+ *
+ ********************************************************************/
+
+package com.bluemarsh.benoit.render;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the dwell data of finished renders on disk, so that they
+ * survive a restart of the program. Like the SharedRenderCache, it
+ * holds whole renders: each is kept in a file of its own, named for a
+ * digest of its render key, which gives the exact region and render
+ * settings. It serves only a view that is rendered again as it was;
+ * unlike the TileCache it has no tiles, so views that merely overlap
+ * share nothing through it. The dwells are stored as plain integers in
+ * the order in which they are held in memory, and are read with one
+ * bulk copy out of a memory mapping of the file.
+ *
+ * <p>The total size of the files is held within a budget by deleting
+ * the least recently used files. Each file is touched when it is read,
+ * so that its modification time records its last use across
+ * restarts.</p>
+ *
+ * @author  Nathan Fiedler
+ */
+public class DiskRenderCache {
+    /** Identifies a cache file. */
+    private static final int MAGIC = 0x42445743;
+    /** Version of the file format. */
+    private static final int VERSION = 1;
+    /** Suffix of the cache files. */
+    private static final String SUFFIX = ".dwell";
+    /** Logger. */
+    private static Logger logger = Logger.getLogger(
+        "com.bluemarsh.benoit.render");
+    /** The process-wide cache. */
+    private static DiskRenderCache defaultCache;
+    /** Directory holding the cache files. */
+    private File dir;
+    /** Most bytes the files may take up. */
+    private long budget;
+    /** Sizes (Long) of the cache files by name, least recent first. */
+    private Map files;
+    /** Bytes taken up by the cache files. */
+    private long size;
+    /** Number of lookups that found a render. */
+    private int hits;
+    /** Number of files deleted to stay within budget. */
+    private int evictions;
+
+    /**
+     * Constructs a DiskRenderCache.
+     *
+     * @param  dir     directory holding the cache files.
+     * @param  budget  most bytes the files may take up.
+     */
+    public DiskRenderCache(File dir, long budget) {
+        this.dir = dir;
+        this.budget = budget;
+        files = new LinkedHashMap(16, 0.75f, true);
+        File[] list = dir.listFiles();
+        if (list != null) {
+            Arrays.sort(list, new Comparator() {
+                public int compare(Object o1, Object o2) {
+                    long t1 = ((File) o1).lastModified();
+                    long t2 = ((File) o2).lastModified();
+                    return t1 < t2 ? -1 : (t1 == t2 ? 0 : 1);
+                }
+            });
+            for (int i = 0; i < list.length; i++) {
+                String name = list[i].getName();
+                if (name.endsWith(SUFFIX)) {
+                    long length = list[i].length();
+                    files.put(name, Long.valueOf(length));
+                    size += length;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the process-wide cache, creating it if necessary. The
+     * files are kept in the <code>.benoit/renders</code> directory of
+     * the user's home directory, and their budget is given by the
+     * <code>benoit.render.diskBudget</code> property in bytes, by
+     * default 256 MB.
+     *
+     * @return  disk render cache.
+     */
+    public static synchronized DiskRenderCache getDefault() {
+        if (defaultCache == null) {
+            File dir = new File(System.getProperty("user.home"), ".benoit");
+            long budget = Long.getLong("benoit.render.diskBudget",
+                                       256L * 1024 * 1024).longValue();
+            defaultCache = new DiskRenderCache(new File(dir, "renders"),
+                                               budget);
+        }
+        return defaultCache;
+    }
+
+    /**
+     * Returns the name of the file holding the render for the given key.
+     *
+     * @param  key  render key.
+     * @return  file name.
+     */
+    private static String createName(String key) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] digest = md.digest(key.getBytes("UTF-8"));
+            StringBuffer sb = new StringBuffer();
+            for (int i = 0; i < digest.length; i++) {
+                sb.append(Character.forDigit((digest[i] >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(digest[i] & 0xf, 16));
+            }
+            return sb.append(SUFFIX).toString();
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException(nsae.toString());
+        } catch (IOException ioe) {
+            throw new IllegalStateException(ioe.toString());
+        }
+    }
+
+    /**
+     * Returns the dwell data of the render for the given key.
+     *
+     * @param  key  render key.
+     * @return  dwell data, or null if not cached.
+     */
+    public synchronized DwellData get(String key) {
+        String name = createName(key);
+        if (files.get(name) == null) {
+            return null;
+        }
+        File file = new File(dir, name);
+        try {
+            DwellData data = read(file, key);
+            if (data != null) {
+                hits++;
+                file.setLastModified(System.currentTimeMillis());
+                return data;
+            }
+        } catch (IOException ioe) {
+            logger.warning("could not read " + file + ": " + ioe);
+        }
+        remove(name);
+        return null;
+    }
+
+    /**
+     * Returns the number of lookups that found a render.
+     *
+     * @return  hit count.
+     */
+    public synchronized int getHitCount() {
+        return hits;
+    }
+
+    /**
+     * Saves the dwell data of a finished render, replacing any saved
+     * before for the same key, and deletes the least recently used
+     * files as needed to stay within the budget.
+     *
+     * @param  key   render key.
+     * @param  data  dwell data of the render.
+     */
+    public synchronized void put(String key, DwellData data) {
+        String name = createName(key);
+        remove(name);
+        File file = new File(dir, name);
+        File tmp = new File(dir, name + ".tmp");
+        try {
+            if (!dir.exists()) {
+                dir.mkdirs();
+            }
+            write(tmp, key, data);
+            if (!tmp.renameTo(file)) {
+                throw new IOException("could not rename " + tmp);
+            }
+        } catch (IOException ioe) {
+            logger.warning("could not write " + file + ": " + ioe);
+            tmp.delete();
+            return;
+        }
+        long length = file.length();
+        files.put(name, Long.valueOf(length));
+        size += length;
+        Iterator iter = files.entrySet().iterator();
+        while (size > budget && iter.hasNext()) {
+            Map.Entry oldest = (Map.Entry) iter.next();
+            size -= ((Long) oldest.getValue()).longValue();
+            iter.remove();
+            new File(dir, (String) oldest.getKey()).delete();
+            evictions++;
+        }
+    }
+
+    /**
+     * Reads the dwell data from the given file.
+     *
+     * @param  file  cache file.
+     * @param  key   render key expected in the file.
+     * @return  dwell data, or null if the file holds another key.
+     * @throws  IOException
+     *          if the file could not be read or is not valid.
+     */
+    private static DwellData read(File file, String key) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("not a cache file");
+            }
+            if (!key.equals(in.readUTF())) {
+                return null;
+            }
+            int width = in.readInt();
+            int height = in.readInt();
+            int limit = in.readInt();
+            long offset = in.getFilePointer();
+            long length = (long) width * height * 4;
+            if (width <= 0 || height <= 0 || length / 4 > Integer.MAX_VALUE
+                || offset + length != in.length()) {
+                throw new IOException("truncated cache file");
+            }
+            FileChannel channel = in.getChannel();
+            IntBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY,
+                                           offset, length).asIntBuffer();
+            int[] dwells = new int[width * height];
+            mapped.get(dwells);
+            DwellData data = new DwellData(width, height, dwells);
+            data.setDwellLimit(limit);
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Deletes the file of the given name.
+     *
+     * @param  name  file name.
+     */
+    private void remove(String name) {
+        Long length = (Long) files.remove(name);
+        if (length != null) {
+            size -= length.longValue();
+            new File(dir, name).delete();
+        }
+    }
+
+    /**
+     * Returns a summary of the cache usage.
+     *
+     * @return  summary string.
+     */
+    public synchronized String toString() {
+        return "DiskRenderCache=[files=" + files.size() + ", size=" + size
+            + ", budget=" + budget + ", hits=" + hits + ", evictions="
+            + evictions + "]";
+    }
+
+    /**
+     * Writes the dwell data to the given file.
+     *
+     * @param  file  file to write.
+     * @param  key   render key.
+     * @param  data  dwell data.
+     * @throws  IOException
+     *          if the file could not be written.
+     */
+    private static void write(File file, String key, DwellData data)
+        throws IOException {
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(key);
+            out.writeInt(data.getWidth());
+            out.writeInt(data.getHeight());
+            out.writeInt(data.getDwellLimit());
+            out.flush();
+            int[] dwells = data.getDwells();
+            ByteBuffer buffer = ByteBuffer.allocate(dwells.length * 4);
+            buffer.asIntBuffer().put(dwells);
+            FileChannel channel = fos.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } finally {
+            fos.close();
+        }
+    }
+}
@@ -0,0 +1,264 @@
+/*********************************************************************
+ *
+ *      Copyright (C) 2002-2014 Nathan Fiedler
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * $Id$
+ *
+ ********************************************************************/
+
+package com.bluemarsh.benoit.render;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Packs dwell data into a compact array of bytes, and back again. The
+ * dwells of neighboring pixels are mostly equal or close, so each dwell
+ * is stored as its difference from the previous one, in as few bytes as
+ * needed, and runs of equal dwells are stored as a count. The result
+ * may be compressed further with Deflate. A typical view packs to a few
+ * percent of the size of its image.
+ *
+ * @author  Nathan Fiedler
+ */
+public class DwellCodec {
+    /** Flag marking packed data that was compressed with Deflate. */
+    private static final int DEFLATED = 1;
+
+    /**
+     * Creates a new instance of DwellCodec.
+     */
+    private DwellCodec() {
+    }
+
+    /**
+     * Unpacks dwell data packed by <code>encode()</code>.
+     *
+     * @param  packed  packed dwell data.
+     * @return  dwell data.
+     * @throws  IOException
+     *          if the data is not valid.
+     */
+    public static DwellData decode(byte[] packed) throws IOException {
+        return decode(packed, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Unpacks dwell data packed by <code>encode()</code>, provided it
+     * covers no more than the given number of pixels. The data is
+     * checked as it is read, so that data that is damaged fails with
+     * an exception rather than a huge or negative allocation: the
+     * dimensions must be positive and within the limit, every run must
+     * fit in the pixels that remain, and every dwell must lie within
+     * the dwell limit.
+     *
+     * @param  packed     packed dwell data.
+     * @param  maxPixels  the most pixels the data may cover.
+     * @return  dwell data.
+     * @throws  IOException
+     *          if the data is not valid or covers too many pixels.
+     */
+    public static DwellData decode(byte[] packed, long maxPixels)
+        throws IOException {
+        if (packed.length == 0) {
+            throw new EOFException("no packed dwell data");
+        }
+        InputStream in = new ByteArrayInputStream(packed, 1,
+                                                  packed.length - 1);
+        if ((packed[0] & DEFLATED) != 0) {
+            in = new BufferedInputStream(new InflaterInputStream(in));
+        }
+        int width = readVarint(in);
+        int height = readVarint(in);
+        int limit = readVarint(in);
+        long pixels = (long) width * height;
+        if (width <= 0 || height <= 0 || limit <= 0
+            || pixels > Math.min(maxPixels, Integer.MAX_VALUE)) {
+            throw new IOException("packed dwell data corrupt");
+        }
+        DwellData data = new DwellData(width, height);
+        data.setDwellLimit(limit);
+        int previous = 0;
+        int run = 0;
+        int remaining = (int) pixels;
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                if (run == 0) {
+                    int delta = unzigzag(readVarint(in));
+                    if (delta == 0) {
+                        // Equal dwells, the count of which follows.
+                        run = readVarint(in);
+                        if (run <= 0 || run > remaining) {
+                            throw new IOException("packed dwell data corrupt");
+                        }
+                    } else {
+                        previous += delta;
+                        if (previous < -limit || previous > limit) {
+                            throw new IOException("packed dwell data corrupt");
+                        }
+                        run = 1;
+                    }
+                }
+                data.set(x, y, previous);
+                run--;
+                remaining--;
+            }
+        }
+        if (in.read() >= 0) {
+            throw new IOException("packed dwell data corrupt");
+        }
+        return data;
+    }
+
+    /**
+     * Packs the given dwell data.
+     *
+     * @param  data     dwell data to pack.
+     * @param  deflate  true to compress the packed data with Deflate.
+     * @return  packed dwell data.
+     */
+    public static byte[] encode(DwellData data, boolean deflate) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0);
+        try {
+            int width = data.getWidth();
+            int height = data.getHeight();
+            writeVarint(out, width);
+            writeVarint(out, height);
+            writeVarint(out, data.getDwellLimit());
+            int previous = 0;
+            int run = 0;
+            for (int x = 0; x < width; x++) {
+                for (int y = 0; y < height; y++) {
+                    int dwell = data.get(x, y);
+                    if (dwell == previous && (x > 0 || y > 0)) {
+                        run++;
+                        continue;
+                    }
+                    if (run > 0) {
+                        writeVarint(out, 0);
+                        writeVarint(out, run);
+                        run = 0;
+                    }
+                    if (dwell == previous) {
+                        // The first dwell is zero, which is a run of one.
+                        run = 1;
+                    } else {
+                        writeVarint(out, zigzag(dwell - previous));
+                        previous = dwell;
+                    }
+                }
+            }
+            if (run > 0) {
+                writeVarint(out, 0);
+                writeVarint(out, run);
+            }
+            if (!deflate) {
+                return out.toByteArray();
+            }
+            // Compress the packed data in one go, which is much faster
+            // than feeding the deflater a byte at a time.
+            byte[] packed = out.toByteArray();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                packed.length / 2);
+            bytes.write(DEFLATED);
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                OutputStream dout = new DeflaterOutputStream(
+                    bytes, deflater, 8192);
+                dout.write(packed, 1, packed.length - 1);
+                dout.close();
+            } finally {
+                deflater.end();
+            }
+            return bytes.toByteArray();
+        } catch (IOException ioe) {
+            // Cannot happen with a byte array stream.
+            throw new IllegalStateException(ioe.toString());
+        }
+    }
+
+    /**
+     * Reads an unsigned integer stored in seven bit groups.
+     *
+     * @param  in  stream to read from.
+     * @return  integer value.
+     * @throws  IOException
+     *          if the stream ended early.
+     */
+    private static int readVarint(InputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("packed dwell data truncated");
+            }
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("packed dwell data corrupt");
+    }
+
+    /**
+     * Reverses the mapping of <code>zigzag()</code>.
+     *
+     * @param  n  mapped value.
+     * @return  signed value.
+     */
+    private static int unzigzag(int n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    /**
+     * Writes an unsigned integer in seven bit groups, so small values
+     * take a single byte.
+     *
+     * @param  out    stream to write to.
+     * @param  value  integer value.
+     * @throws  IOException
+     *          if the stream fails.
+     */
+    private static void writeVarint(OutputStream out, int value)
+        throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * Maps a signed value to an unsigned one such that values close to
+     * zero, of either sign, are small.
+     *
+     * @param  n  signed value.
+     * @return  mapped value.
+     */
+    private static int zigzag(int n) {
+        return (n << 1) ^ (n >> 31);
+    }
+}
@@ -0,0 +1,261 @@
+/*********************************************************************
+ *
+ *      Copyright (C) 2002-2014 Nathan Fiedler
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * $Id$
+ *
+ ********************************************************************/
+
+package com.bluemarsh.benoit.render;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+
+/**
+ * Holds the escape-iteration count (the dwell) computed for each pixel
+ * of a rendered image. A dwell of zero means the pixel has not been
+ * computed yet, which allows successive renders of the same region to
+ * reuse the samples computed by earlier, coarser renders. A negative
+ * dwell is a provisional sample, kept from an approximate preview: it
+ * must be computed again, but serves meanwhile as an estimate.
+ *
+ * @author  Nathan Fiedler
+ */
+public class DwellData {
+    /** Most colors kept while creating an image. */
+    private static final int MAX_COLORS = 65536;
+    /** Width of the sampled region, in pixels. */
+    private int width;
+    /** Height of the sampled region, in pixels. */
+    private int height;
+    /** Dwell values, stored column by column. */
+    private int[] dwells;
+    /** The dwell limit that was in effect for the stored samples. */
+    private int dwellLimit;
+    /** True if the samples were computed with reduced precision. */
+    private boolean approximate;
+
+    /**
+     * Constructs a DwellData with no samples computed.
+     *
+     * @param  width   width of the sampled region.
+     * @param  height  height of the sampled region.
+     */
+    public DwellData(int width, int height) {
+        this.width = width;
+        this.height = height;
+        dwells = new int[width * height];
+    }
+
+    /**
+     * Constructs a DwellData holding the given samples, which are
+     * stored column by column. The array is kept, not copied.
+     *
+     * @param  width   width of the sampled region.
+     * @param  height  height of the sampled region.
+     * @param  dwells  dwell values, column by column.
+     */
+    public DwellData(int width, int height, int[] dwells) {
+        if (dwells.length != width * height) {
+            throw new IllegalArgumentException("wrong number of samples");
+        }
+        this.width = width;
+        this.height = height;
+        this.dwells = dwells;
+    }
+
+    /**
+     * Creates an image showing the samples, as the renderer would have
+     * drawn them at full resolution.
+     *
+     * @return  new image.
+     */
+    public BufferedImage createImage() {
+        BufferedImage image = new BufferedImage(
+            width, height, BufferedImage.TYPE_INT_RGB);
+        // Colors are kept for the lower dwells, which are most common.
+        int[] colors = new int[Math.min(dwellLimit, MAX_COLORS) + 1];
+        int[] rgb = new int[width * height];
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                int dwell = Math.min(Math.abs(dwells[x * height + y]),
+                                     dwellLimit);
+                if (dwell >= colors.length) {
+                    rgb[y * width + x] = getColor(dwell, dwellLimit).getRGB();
+                    continue;
+                }
+                if (colors[dwell] == 0) {
+                    colors[dwell] = getColor(dwell, dwellLimit).getRGB();
+                }
+                rgb[y * width + x] = colors[dwell];
+            }
+        }
+        image.setRGB(0, 0, width, height, rgb, 0, width);
+        return image;
+    }
+
+    /**
+     * Returns the color used to show the given dwell value.
+     *
+     * @param  dwell  escape-iteration count for a point.
+     * @param  limit  the dwell limit used to compute the dwell.
+     * @return  color for the point.
+     */
+    public static Color getColor(int dwell, int limit) {
+        float h = (float) dwell / (float) limit;
+        float b = 1.0f - h * h;
+        return Color.getHSBColor(h, 0.8f, b);
+    }
+
+    /**
+     * Returns the dwell value of the given pixel.
+     *
+     * @param  x  column of pixel.
+     * @param  y  row of pixel.
+     * @return  dwell value, zero if not yet computed, or the negated
+     *          estimate if only provisional.
+     */
+    public int get(int x, int y) {
+        return dwells[x * height + y];
+    }
+
+    /**
+     * Returns the dwell limit that was in effect for the samples.
+     *
+     * @return  dwell limit, or zero if not yet known.
+     */
+    public int getDwellLimit() {
+        return dwellLimit;
+    }
+
+    /**
+     * Returns the dwell values, column by column, for writing them out
+     * in bulk. The array is the one held by this object, not a copy.
+     *
+     * @return  dwell values.
+     */
+    int[] getDwells() {
+        return dwells;
+    }
+
+    /**
+     * Returns the estimated dwell value of the given pixel, which is
+     * the dwell if computed, or the provisional sample if any.
+     *
+     * @param  x  column of pixel.
+     * @param  y  row of pixel.
+     * @return  estimated dwell value, or zero if not known.
+     */
+    public int getEstimate(int x, int y) {
+        return Math.abs(dwells[x * height + y]);
+    }
+
+    /**
+     * Returns the height of the sampled region.
+     *
+     * @return  height in pixels.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the width of the sampled region.
+     *
+     * @return  width in pixels.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Indicates if the samples were computed with reduced precision.
+     *
+     * @return  true if approximate, false otherwise.
+     */
+    public synchronized boolean isApproximate() {
+        return approximate;
+    }
+
+    /**
+     * Indicates if the given pixel has already been computed.
+     *
+     * @param  x  column of pixel.
+     * @param  y  row of pixel.
+     * @return  true if computed, false if not or only provisional.
+     */
+    public boolean isComputed(int x, int y) {
+        return dwells[x * height + y] > 0;
+    }
+
+    /**
+     * Sets the dwell value of the given pixel.
+     *
+     * @param  x      column of pixel.
+     * @param  y      row of pixel.
+     * @param  dwell  dwell value.
+     */
+    public void set(int x, int y, int dwell) {
+        dwells[x * height + y] = dwell;
+    }
+
+    /**
+     * Sets whether subsequent samples are computed with reduced
+     * precision. Approximate samples serve for a preview; when precise
+     * samples are next required, they are kept as provisional samples,
+     * each replaced as the point is computed again.
+     *
+     * @param  approximate  true if approximate, false if precise.
+     */
+    public synchronized void setApproximate(boolean approximate) {
+        if (this.approximate && !approximate) {
+            for (int i = 0; i < dwells.length; i++) {
+                if (dwells[i] > 0) {
+                    dwells[i] = -dwells[i];
+                }
+            }
+        }
+        this.approximate = approximate;
+    }
+
+    /**
+     * Sets the dwell limit for subsequent samples. Samples that escaped
+     * before the old limit remain valid under a higher limit, but those
+     * that reached the old limit must be computed again. Lowering the
+     * limit invalidates all of the samples. Provisional samples are
+     * kept, as they are computed again in any case.
+     *
+     * @param  limit  new dwell limit.
+     */
+    public synchronized void setDwellLimit(int limit) {
+        if (limit == dwellLimit) {
+            return;
+        }
+        if (limit < dwellLimit) {
+            for (int i = 0; i < dwells.length; i++) {
+                dwells[i] = 0;
+            }
+        } else if (dwellLimit > 0) {
+            for (int i = 0; i < dwells.length; i++) {
+                if (dwells[i] >= dwellLimit) {
+                    dwells[i] = 0;
+                }
+            }
+        }
+        dwellLimit = limit;
+    }
+}
@@ -23,82 +23,426 @@
 package com.bluemarsh.benoit.render;
 
 import com.bluemarsh.benoit.model.Parameters;
-import java.awt.Color;
-import java.awt.Graphics;
-import java.awt.Image;
 
 /**
  * The fast-doubles concrete implementation of a renderer.
  *
+ * <p>The points may be computed several at a time, with the iterations
+ * of two or four points interleaved in one loop. The iterations of any
+ * one point depend on each other, so the processor would otherwise sit
+ * idle waiting for each multiply to finish; with several independent
+ * points in the loop, it can work on one while waiting on the others.
+ * The number of points, or lanes, is chosen by the {@link Calibration}
+ * as whichever renders fastest on this machine.</p>
+ *
  * @author  Nathan Fiedler
  */
 public class FastDoublesRenderer extends AbstractRenderer {
+    /** Number of lanes used until tuned, which suits most processors. */
+    private static final int DEFAULT_LANES = 4;
+    /** Prefix of the key of the tuned number of lanes. */
+    public static final String LANES = "lanes.";
+    /** Number of lanes set for this renderer, or zero to use tuned. */
+    private int lanes;
+
+    /**
+     * Creates the kernel that computes the points of the given region
+     * using double-precision arithmetic. Changing the parameters during
+     * the render will not affect it. The points are calculated using
+     * the escape-iterations algorithm.
+     *
+     * @param  params      boundaries of region to draw.
+     * @param  width       width of the image.
+     * @param  height      height of the image.
+     * @param  dwellLimit  maximum number of iterations per point.
+     * @return  new kernel.
+     */
+    protected Kernel createKernel(Parameters params, int width, int height,
+                                  int dwellLimit) {
+        int n = getLanes();
+        if (n > 1) {
+            return new InterleavedKernel(params, width, height, dwellLimit,
+                                         n);
+        }
+        return new DoubleKernel(params, width, height, dwellLimit);
+    }
+
+    /**
+     * Creates the kernel for a preview of the given region, which uses
+     * single-precision arithmetic if the pixels are far enough apart
+     * for the float values to tell them apart.
+     *
+     * @param  params      boundaries of region to draw.
+     * @param  width       width of the image.
+     * @param  height      height of the image.
+     * @param  dwellLimit  maximum number of iterations per point.
+     * @return  new kernel.
+     */
+    protected Kernel createPreviewKernel(Parameters params, int width,
+                                         int height, int dwellLimit) {
+        if (FloatKernel.isPrecise(params, width, height)) {
+            return new FloatKernel(params, width, height, dwellLimit);
+        }
+        return createKernel(params, width, height, dwellLimit);
+    }
+
+    /**
+     * Returns the number of points computed together in one loop.
+     *
+     * @return  one, two or four lanes.
+     */
+    public int getLanes() {
+        int n = lanes > 0 ? lanes : Tuning.getDefault().getInt(
+            LANES + getTuningKey(), DEFAULT_LANES);
+        return n >= 4 ? 4 : (n >= 2 ? 2 : 1);
+    }
+
+    /**
+     * Sets the number of points computed together in one loop,
+     * overriding the number tuned for this machine.
+     *
+     * @param  lanes  one, two or four lanes, or zero to use the tuned
+     *                number.
+     */
+    public void setLanes(int lanes) {
+        this.lanes = lanes;
+    }
 
     /**
-     * Renders the Mandelbrot set to the image using the current
-     * parameters. Changing the parameters during this rendering will
-     * not affect it. This method uses a very simple approach, drawing
-     * each vertical column of pixels from left to right. The points are
-     * calculated using the escape-iterations algorithm.
+     * Returns the name under which the settings tuned for this renderer
+     * are kept.
      *
-     * @param  image   image to render to.
-     * @param  params  boundaries of region to draw.
+     * @return  tuning key.
      */
-    public void render(Image image, Parameters params) {
-        int width = image.getWidth(null);
-        int height = image.getHeight(null);
-        if (width == -1 || height == -1) {
-            // Image is not ready yet.
-            throw new IllegalArgumentException("image not loaded");
+    protected String getTuningKey() {
+        return "double";
+    }
+
+    /**
+     * Computes points using double-precision arithmetic.
+     */
+    protected static class DoubleKernel extends Kernel {
+        /** Minimum x value of the region. */
+        protected double minX;
+        /** Minimum y value of the region. */
+        protected double minY;
+        /** Width of each pixel. */
+        protected double dx;
+        /** Height of each pixel. */
+        protected double dy;
+
+        /**
+         * Constructs a DoubleKernel.
+         *
+         * @param  params      boundaries of region to draw.
+         * @param  width       width of the image.
+         * @param  height      height of the image.
+         * @param  dwellLimit  maximum number of iterations per point.
+         */
+        public DoubleKernel(Parameters params, int width, int height,
+                            int dwellLimit) {
+            super(dwellLimit);
+            minX = params.getMinX().doubleValue();
+            double maxX = params.getMaxX().doubleValue();
+            minY = params.getMinY().doubleValue();
+            double maxY = params.getMaxY().doubleValue();
+            dx = (maxX - minX) / width;
+            dy = (maxY - minY) / height;
+            setMirror(minY, dy, height);
         }
-        Graphics g = image.getGraphics();
-
-        double minX = params.getMinX().doubleValue();
-        double maxX = params.getMaxX().doubleValue();
-        double minY = params.getMinY().doubleValue();
-        double maxY = params.getMaxY().doubleValue();
-        double dx = (maxX - minX) / width;
-        double dy = (maxY - minY) / height;
-        int dwellLimit = 100;
-        // avoid using sqrt() repeatedly by squaring the escape radius.
-        double escapeRadius = 4.0; // 2.0 ^ 2
-        boolean interrupted = false;
-        for (int x = 0; x < width; x++) {
+
+        /**
+         * Computes the escape-iteration count for the given pixel.
+         *
+         * @param  x  column of pixel.
+         * @param  y  row of pixel.
+         * @return  dwell of the point.
+         */
+        public int dwell(int x, int y) {
             double cr = dx * x + minX;
-            for (int y = 0; y < height; y++) {
-                double ci = dy * y + minY;
-                double zr = cr;
-                double zi = ci;
-                double m;
-                int iter = 1;
-
-                do {
-                    // z = z * z + c
-                    double r = zr * zr - zi * zi;
-                    zi = 2.0 * zr * zi + ci;
-                    zr = r + cr;
-                    // magnitude (would use sqrt() normally)
-                    m = zr * zr + zi * zi;
-                    iter++;
-                } while (m < escapeRadius && iter < dwellLimit);
-
-                float h = (float) iter / (float) dwellLimit;
-                float b = 1.0f - h * h;
-                g.setColor(Color.getHSBColor(h, 0.8f, b));
-                g.drawLine(x, y, x, y);
-            }
+            double ci = dy * y + minY;
+            double zr = cr;
+            double zi = ci;
+            double m;
+            int iter = 1;
 
-            if (Thread.interrupted()) {
-                interrupted = true;
-                break;
+            do {
+                // z = z * z + c
+                double r = zr * zr - zi * zi;
+                zi = 2.0 * zr * zi + ci;
+                zr = r + cr;
+                // magnitude (would use sqrt() normally)
+                m = zr * zr + zi * zi;
+                iter++;
+            } while (m < ESCAPE_RADIUS && iter < dwellLimit);
+            return iter;
+        }
+    }
+
+    /**
+     * Computes points using double-precision arithmetic, two or four
+     * points at a time. Each point gives exactly the same dwell as it
+     * does with the DoubleKernel.
+     */
+    protected static class InterleavedKernel extends DoubleKernel {
+        /** Number of points computed together. */
+        private int lanes;
+
+        /**
+         * Constructs an InterleavedKernel.
+         *
+         * @param  params      boundaries of region to draw.
+         * @param  width       width of the image.
+         * @param  height      height of the image.
+         * @param  dwellLimit  maximum number of iterations per point.
+         * @param  lanes       number of points computed together, two
+         *                     or four.
+         */
+        public InterleavedKernel(Parameters params, int width, int height,
+                                 int dwellLimit, int lanes) {
+            super(params, width, height, dwellLimit);
+            this.lanes = lanes;
+        }
+
+        /**
+         * Computes the escape-iteration counts for several pixels of
+         * one column.
+         *
+         * @param  x       column of the pixels.
+         * @param  ys      rows of the pixels.
+         * @param  count   number of pixels.
+         * @param  result  receives the dwell of each pixel.
+         */
+        public void dwell(int x, int[] ys, int count, int[] result) {
+            int i = 0;
+            if (lanes == 4) {
+                for (; i + 4 <= count; i += 4) {
+                    dwell4(x, ys, i, result);
+                }
             }
-            if (x % 25 == 0) {
-                fireUpdate(100 * x / width);
+            for (; i + 2 <= count; i += 2) {
+                dwell2(x, ys, i, result);
             }
+            if (i < count) {
+                result[i] = dwell(x, ys[i]);
+            }
+        }
+
+        /**
+         * Computes two pixels of one column together.
+         *
+         * @param  x       column of the pixels.
+         * @param  ys      rows of the pixels.
+         * @param  i       index of the first pixel in ys.
+         * @param  result  receives the dwell of each pixel.
+         */
+        private void dwell2(int x, int[] ys, int i, int[] result) {
+            double cr = dx * x + minX;
+            double ci0 = dy * ys[i] + minY;
+            double ci1 = dy * ys[i + 1] + minY;
+            double zr0 = cr;
+            double zi0 = ci0;
+            double zr1 = cr;
+            double zi1 = ci1;
+            int d0 = 0;
+            int d1 = 0;
+            int iter = 1;
+
+            // A finished point keeps iterating with the others, but its
+            // dwell is recorded when it first escapes.
+            do {
+                double r0 = zr0 * zr0 - zi0 * zi0;
+                double r1 = zr1 * zr1 - zi1 * zi1;
+                zi0 = 2.0 * zr0 * zi0 + ci0;
+                zi1 = 2.0 * zr1 * zi1 + ci1;
+                zr0 = r0 + cr;
+                zr1 = r1 + cr;
+                double m0 = zr0 * zr0 + zi0 * zi0;
+                double m1 = zr1 * zr1 + zi1 * zi1;
+                iter++;
+                if (d0 == 0 && !(m0 < ESCAPE_RADIUS && iter < dwellLimit)) {
+                    d0 = iter;
+                }
+                if (d1 == 0 && !(m1 < ESCAPE_RADIUS && iter < dwellLimit)) {
+                    d1 = iter;
+                }
+            } while (d0 == 0 || d1 == 0);
+            result[i] = d0;
+            result[i + 1] = d1;
+        }
+
+        /**
+         * Computes four pixels of one column together.
+         *
+         * @param  x       column of the pixels.
+         * @param  ys      rows of the pixels.
+         * @param  i       index of the first pixel in ys.
+         * @param  result  receives the dwell of each pixel.
+         */
+        private void dwell4(int x, int[] ys, int i, int[] result) {
+            double cr = dx * x + minX;
+            double ci0 = dy * ys[i] + minY;
+            double ci1 = dy * ys[i + 1] + minY;
+            double ci2 = dy * ys[i + 2] + minY;
+            double ci3 = dy * ys[i + 3] + minY;
+            double zr0 = cr;
+            double zi0 = ci0;
+            double zr1 = cr;
+            double zi1 = ci1;
+            double zr2 = cr;
+            double zi2 = ci2;
+            double zr3 = cr;
+            double zi3 = ci3;
+            int d0 = 0;
+            int d1 = 0;
+            int d2 = 0;
+            int d3 = 0;
+            int iter = 1;
+
+            do {
+                double r0 = zr0 * zr0 - zi0 * zi0;
+                double r1 = zr1 * zr1 - zi1 * zi1;
+                double r2 = zr2 * zr2 - zi2 * zi2;
+                double r3 = zr3 * zr3 - zi3 * zi3;
+                zi0 = 2.0 * zr0 * zi0 + ci0;
+                zi1 = 2.0 * zr1 * zi1 + ci1;
+                zi2 = 2.0 * zr2 * zi2 + ci2;
+                zi3 = 2.0 * zr3 * zi3 + ci3;
+                zr0 = r0 + cr;
+                zr1 = r1 + cr;
+                zr2 = r2 + cr;
+                zr3 = r3 + cr;
+                double m0 = zr0 * zr0 + zi0 * zi0;
+                double m1 = zr1 * zr1 + zi1 * zi1;
+                double m2 = zr2 * zr2 + zi2 * zi2;
+                double m3 = zr3 * zr3 + zi3 * zi3;
+                iter++;
+                if (d0 == 0 && !(m0 < ESCAPE_RADIUS && iter < dwellLimit)) {
+                    d0 = iter;
+                }
+                if (d1 == 0 && !(m1 < ESCAPE_RADIUS && iter < dwellLimit)) {
+                    d1 = iter;
+                }
+                if (d2 == 0 && !(m2 < ESCAPE_RADIUS && iter < dwellLimit)) {
+                    d2 = iter;
+                }
+                if (d3 == 0 && !(m3 < ESCAPE_RADIUS && iter < dwellLimit)) {
+                    d3 = iter;
+                }
+            } while (d0 == 0 || d1 == 0 || d2 == 0 || d3 == 0);
+            result[i] = d0;
+            result[i + 1] = d1;
+            result[i + 2] = d2;
+            result[i + 3] = d3;
+        }
+
+        /**
+         * Returns the number of pixels this kernel computes at once.
+         *
+         * @return  number of lanes.
+         */
+        public int getBatchSize() {
+            return lanes;
         }
+    }
+
+    /**
+     * Computes points using single-precision arithmetic, which is faster
+     * than double precision but can only be used for shallow zooms.
+     */
+    protected static class FloatKernel extends Kernel {
+        /** Pixels must be this many float ulps apart to be told apart. */
+        private static final float MIN_ULPS = 64.0f;
+        /** Minimum x value of the region. */
+        private float minX;
+        /** Minimum y value of the region. */
+        private float minY;
+        /** Width of each pixel. */
+        private float dx;
+        /** Height of each pixel. */
+        private float dy;
+
+        /**
+         * Constructs a FloatKernel.
+         *
+         * @param  params      boundaries of region to draw.
+         * @param  width       width of the image.
+         * @param  height      height of the image.
+         * @param  dwellLimit  maximum number of iterations per point.
+         */
+        public FloatKernel(Parameters params, int width, int height,
+                           int dwellLimit) {
+            super(dwellLimit);
+            double x0 = params.getMinX().doubleValue();
+            double x1 = params.getMaxX().doubleValue();
+            double y0 = params.getMinY().doubleValue();
+            double y1 = params.getMaxY().doubleValue();
+            minX = (float) x0;
+            minY = (float) y0;
+            dx = (float) ((x1 - x0) / width);
+            dy = (float) ((y1 - y0) / height);
+            setMirror(minY, dy, height);
+        }
+
+        /**
+         * Indicates if single precision is enough for the given region,
+         * that is, if the spacing of the pixels is well above the spacing
+         * of the float values near the region. Points of the set lie
+         * within a radius of two of the origin, so the spacing of the
+         * float values near two is the least that must be allowed for.
+         *
+         * @param  params  boundaries of region to draw.
+         * @param  width   width of the image.
+         * @param  height  height of the image.
+         * @return  true if float arithmetic will do, false otherwise.
+         */
+        public static boolean isPrecise(Parameters params, int width,
+                                        int height) {
+            double x0 = params.getMinX().doubleValue();
+            double x1 = params.getMaxX().doubleValue();
+            double y0 = params.getMinY().doubleValue();
+            double y1 = params.getMaxY().doubleValue();
+            double mag = Math.max(Math.max(Math.abs(x0), Math.abs(x1)),
+                                  Math.max(Math.abs(y0), Math.abs(y1)));
+            double ulp = Math.ulp((float) Math.max(mag, 2.0));
+            double spacing = Math.min((x1 - x0) / width, (y1 - y0) / height);
+            return spacing > MIN_ULPS * ulp;
+        }
+
+        /**
+         * Indicates that this kernel computes with reduced precision.
+         *
+         * @return  true.
+         */
+        public boolean isApproximate() {
+            return true;
+        }
+
+        /**
+         * Computes the escape-iteration count for the given pixel.
+         *
+         * @param  x  column of pixel.
+         * @param  y  row of pixel.
+         * @return  dwell of the point.
+         */
+        public int dwell(int x, int y) {
+            float cr = dx * x + minX;
+            float ci = dy * y + minY;
+            float zr = cr;
+            float zi = ci;
+            float m;
+            int iter = 1;
 
-        if (!interrupted) {
-            fireUpdate(100);
+            do {
+                // z = z * z + c
+                float r = zr * zr - zi * zi;
+                zi = 2.0f * zr * zi + ci;
+                zr = r + cr;
+                // magnitude (would use sqrt() normally)
+                m = zr * zr + zi * zi;
+                iter++;
+            } while (m < ESCAPE_RADIUS && iter < dwellLimit);
+            return iter;
         }
     }
 }
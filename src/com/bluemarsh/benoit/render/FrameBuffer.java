@@ -0,0 +1,91 @@
+/*********************************************************************
+ *
+ *      Copyright (C) 2002-2014 Nathan Fiedler
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * $Id$
+ *
+ ********************************************************************/
+
+package com.bluemarsh.benoit.render;
+
+import java.awt.Graphics;
+import java.awt.Image;
+import java.awt.Rectangle;
+
+/**
+ * A pair of images, one for rendering to and one for display. Renderers
+ * draw into the back image and publish each finished region, which
+ * copies it to the front image while holding the front image's lock.
+ * Anything showing the front image must hold the same lock while it
+ * draws, and will therefore only ever see whole, finished regions.
+ *
+ * @author  Nathan Fiedler
+ */
+public class FrameBuffer {
+    /** Image the renderers draw into. */
+    private Image back;
+    /** Image shown to the user. */
+    private Image front;
+
+    /**
+     * Constructs a FrameBuffer from two images of the same size.
+     *
+     * @param  front  image shown to the user.
+     * @param  back   image the renderers draw into.
+     */
+    public FrameBuffer(Image front, Image back) {
+        this.front = front;
+        this.back = back;
+    }
+
+    /**
+     * Returns the image the renderers draw into.
+     *
+     * @return  back image.
+     */
+    public Image getBackImage() {
+        return back;
+    }
+
+    /**
+     * Returns the image shown to the user. Callers must synchronize on
+     * the returned image while drawing it.
+     *
+     * @return  front image.
+     */
+    public Image getFrontImage() {
+        return front;
+    }
+
+    /**
+     * Copies the given region of the back image to the front image.
+     *
+     * @param  r  region to be published.
+     */
+    public void publish(Rectangle r) {
+        int x2 = r.x + r.width;
+        int y2 = r.y + r.height;
+        synchronized (front) {
+            Graphics g = front.getGraphics();
+            try {
+                g.drawImage(back, r.x, r.y, x2, y2, r.x, r.y, x2, y2, null);
+            } finally {
+                g.dispose();
+            }
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*********************************************************************
+ *
+ *      Copyright (C) 2002-2014 Nathan Fiedler
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * $Id$
+ *
+ ********************************************************************/
+
+package com.bluemarsh.benoit.render;
+
+/**
+ * A Kernel computes the escape-iteration count for the points of one
+ * particular region of the set, using one particular kind of arithmetic.
+ * Kernels are created by the renderer for each render and hold no state
+ * other than the region boundaries, so they may be shared by threads.
+ *
+ * @author  Nathan Fiedler
+ */
+public abstract class Kernel {
+    /** Avoid using sqrt() repeatedly by squaring the escape radius. */
+    protected static final double ESCAPE_RADIUS = 4.0; // 2.0 ^ 2
+    /** Maximum number of iterations to perform for each point. */
+    protected int dwellLimit;
+    /** Signals that the render should stop, may be null. */
+    protected CancelToken cancelToken;
+    /** Sum of each row and its mirror image, or -1 if no symmetry. */
+    private int mirrorSum = -1;
+    /** Height of the image, in pixels. */
+    private int height;
+
+    /**
+     * Constructs a Kernel.
+     *
+     * @param  dwellLimit  maximum number of iterations per point.
+     */
+    protected Kernel(int dwellLimit) {
+        this.dwellLimit = dwellLimit;
+    }
+
+    /**
+     * Computes the escape-iteration count for the given pixel.
+     *
+     * @param  x  column of pixel.
+     * @param  y  row of pixel.
+     * @return  dwell of the point, between 2 and the dwell limit, or
+     *          zero if the render was cancelled before it finished.
+     */
+    public abstract int dwell(int x, int y);
+
+    /**
+     * Computes the escape-iteration counts for several pixels of one
+     * column. Kernels that can compute several points at once, faster
+     * than one after another, override this method.
+     *
+     * @param  x       column of the pixels.
+     * @param  ys      rows of the pixels.
+     * @param  count   number of pixels, at most the batch size.
+     * @param  result  receives the dwell of each pixel, or zero if the
+     *                 render was cancelled before it finished.
+     */
+    public void dwell(int x, int[] ys, int count, int[] result) {
+        for (int i = 0; i < count; i++) {
+            result[i] = dwell(x, ys[i]);
+        }
+    }
+
+    /**
+     * Returns the number of pixels this kernel computes at once.
+     *
+     * @return  batch size, one if the kernel computes a pixel at a time.
+     */
+    public int getBatchSize() {
+        return 1;
+    }
+
+    /**
+     * Returns the dwell limit used by this kernel.
+     *
+     * @return  dwell limit.
+     */
+    public int getDwellLimit() {
+        return dwellLimit;
+    }
+
+    /**
+     * Returns the row that is the mirror image of the given row across
+     * the real axis. The set is symmetric about the real axis, so the
+     * points of the two rows have the same dwells.
+     *
+     * @param  y  row of pixel.
+     * @return  mirror row, or -1 if the row has no mirror in the image.
+     */
+    public int getMirrorRow(int y) {
+        if (mirrorSum < 0) {
+            return -1;
+        }
+        int m = mirrorSum - y;
+        return m >= 0 && m < height && m != y ? m : -1;
+    }
+
+    /**
+     * Indicates if this kernel computes with less precision than the
+     * renderer normally uses. Samples from such a kernel are good enough
+     * for a preview, but are computed again for a full render.
+     *
+     * @return  true if approximate, false otherwise.
+     */
+    public boolean isApproximate() {
+        return false;
+    }
+
+    /**
+     * Indicates if the render has been cancelled. Kernels that take a
+     * long time to compute a point should check this periodically.
+     *
+     * @return  true if cancelled, false otherwise.
+     */
+    protected boolean isCancelled() {
+        return cancelToken != null && cancelToken.isCancelled();
+    }
+
+    /**
+     * Finds the rows that mirror each other across the real axis, given
+     * the imaginary part of the first row and the height of each row.
+     * Rows mirror each other only if the real axis lies exactly on a
+     * row or exactly halfway between two rows.
+     *
+     * @param  minY    imaginary part of the first row.
+     * @param  dy      height of each row.
+     * @param  height  height of the image, in pixels.
+     */
+    protected void setMirror(double minY, double dy, int height) {
+        this.height = height;
+        mirrorSum = -1;
+        if (dy > 0.0 && minY < 0.0) {
+            double sum = -2.0 * minY / dy;
+            long rounded = Math.round(sum);
+            if (Math.abs(sum - rounded) < 1e-6 && rounded < 2 * height) {
+                mirrorSum = (int) rounded;
+            }
+        }
+    }
+
+    /**
+     * Sets the token that signals the render should stop.
+     *
+     * @param  token  cancel token.
+     */
+    public void setCancelToken(CancelToken token) {
+        cancelToken = token;
+    }
+}
@@ -0,0 +1,194 @@
+/*********************************************************************
+ *
+ *      Copyright (C) 2002-2014 Nathan Fiedler
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * $Id$
+ *
+ ********************************************************************/
+
+package com.bluemarsh.benoit.render;
+
+import com.bluemarsh.benoit.model.BenoitNumber;
+import com.bluemarsh.benoit.model.Parameters;
+
+/**
+ * A grid of pixels laid over the whole of the complex plane. The grid
+ * for a given pixel pitch has a pixel at every integer multiple of the
+ * pitch, so that every view rendered at that pitch, whose corner lies
+ * on one of those pixels, computes exactly the same points where it
+ * overlaps another view. The pitch itself is rounded to a few bits of
+ * mantissa, so that views at nearly the same zoom share one grid.
+ *
+ * <p>Only regions given in doubles have a grid. The pixel index of a
+ * BigDecimal region deep in the set would not fit in a long.</p>
+ *
+ * @author  Nathan Fiedler
+ */
+public class PixelGrid {
+    /** Bits of mantissa kept when rounding the pitch. */
+    private static final int PITCH_BITS = 10;
+    /** Greatest relative difference of an aligned pitch. */
+    private static final double PITCH_TOLERANCE = 1e-6;
+    /** Greatest distance in pixels of an aligned corner from the grid. */
+    private static final double ORIGIN_TOLERANCE = 1e-3;
+    /** Width of each pixel. */
+    private double pitchX;
+    /** Height of each pixel. */
+    private double pitchY;
+    /** Grid column of the left-most column of the view. */
+    private long originX;
+    /** Grid row of the top-most row of the view. */
+    private long originY;
+
+    /**
+     * Constructs a PixelGrid.
+     *
+     * @param  pitchX   width of each pixel.
+     * @param  pitchY   height of each pixel.
+     * @param  originX  grid column of the first column of the view.
+     * @param  originY  grid row of the first row of the view.
+     */
+    private PixelGrid(double pitchX, double pitchY, long originX,
+                      long originY) {
+        this.pitchX = pitchX;
+        this.pitchY = pitchY;
+        this.originX = originX;
+        this.originY = originY;
+    }
+
+    /**
+     * Returns the grid on which the given view lies.
+     *
+     * @param  params  boundaries of region.
+     * @param  width   width of the image.
+     * @param  height  height of the image.
+     * @return  pixel grid, or null if the view does not lie on a grid.
+     */
+    public static PixelGrid create(Parameters params, int width, int height) {
+        if (params.getMinX().getType() != BenoitNumber.DOUBLE_TYPE) {
+            return null;
+        }
+        double minX = params.getMinX().doubleValue();
+        double minY = params.getMinY().doubleValue();
+        double dx = (params.getMaxX().doubleValue() - minX) / width;
+        double dy = (params.getMaxY().doubleValue() - minY) / height;
+        double pitchX = roundPitch(dx);
+        double pitchY = roundPitch(dy);
+        if (!(Math.abs(pitchX - dx) <= PITCH_TOLERANCE * dx)
+            || !(Math.abs(pitchY - dy) <= PITCH_TOLERANCE * dy)) {
+            return null;
+        }
+        double ox = minX / pitchX;
+        double oy = minY / pitchY;
+        if (Math.abs(ox) >= Long.MAX_VALUE / 2
+            || Math.abs(oy) >= Long.MAX_VALUE / 2
+            || Math.abs(ox - Math.rint(ox)) > ORIGIN_TOLERANCE
+            || Math.abs(oy - Math.rint(oy)) > ORIGIN_TOLERANCE) {
+            return null;
+        }
+        return new PixelGrid(pitchX, pitchY, (long) Math.rint(ox),
+                             (long) Math.rint(oy));
+    }
+
+    /**
+     * Returns a key that is the same for all views on this grid.
+     *
+     * @return  grid key.
+     */
+    public String getKey() {
+        return getKey(0);
+    }
+
+    /**
+     * Returns the key of the grid whose pitch is this grid's pitch
+     * times the given power of two. Every pixel of the coarser of two
+     * such grids coincides with a pixel of the finer grid.
+     *
+     * @param  level  power of two, negative for a finer grid.
+     * @return  grid key.
+     */
+    public String getKey(int level) {
+        double px = Math.scalb(pitchX, level);
+        double py = Math.scalb(pitchY, level);
+        return Long.toHexString(Double.doubleToLongBits(px)) + ':'
+            + Long.toHexString(Double.doubleToLongBits(py));
+    }
+
+    /**
+     * Returns the grid column of the left-most column of the view.
+     *
+     * @return  grid column.
+     */
+    public long getOriginX() {
+        return originX;
+    }
+
+    /**
+     * Returns the grid row of the top-most row of the view.
+     *
+     * @return  grid row.
+     */
+    public long getOriginY() {
+        return originY;
+    }
+
+    /**
+     * Rounds the pixel pitch to the nearest value with few bits of
+     * mantissa.
+     *
+     * @param  pitch  pixel pitch.
+     * @return  rounded pitch.
+     */
+    private static double roundPitch(double pitch) {
+        int exp = Math.getExponent(pitch) - PITCH_BITS;
+        return Math.scalb(Math.rint(Math.scalb(pitch, -exp)), exp);
+    }
+
+    /**
+     * Moves the corners of the region by less than a pixel, so that the
+     * region lies on a pixel grid and can share computed points with
+     * other views at the same zoom. Regions that are not given in
+     * doubles are left alone.
+     *
+     * @param  params  boundaries of region, modified in place.
+     * @param  width   width of the image.
+     * @param  height  height of the image.
+     * @return  true if the region lies on a grid, false otherwise.
+     */
+    public static boolean snap(Parameters params, int width, int height) {
+        if (params.getMinX().getType() != BenoitNumber.DOUBLE_TYPE) {
+            return false;
+        }
+        double minX = params.getMinX().doubleValue();
+        double minY = params.getMinY().doubleValue();
+        double dx = roundPitch((params.getMaxX().doubleValue() - minX)
+                               / width);
+        double dy = roundPitch((params.getMaxY().doubleValue() - minY)
+                               / height);
+        if (dx <= 0.0 || dy <= 0.0 || Double.isInfinite(dx)
+            || Double.isInfinite(dy)) {
+            return false;
+        }
+        minX = Math.rint(minX / dx) * dx;
+        minY = Math.rint(minY / dy) * dy;
+        params.setMinX(new BenoitNumber(minX));
+        params.setMaxX(new BenoitNumber(minX + dx * width));
+        params.setMinY(new BenoitNumber(minY));
+        params.setMaxY(new BenoitNumber(minY + dy * height));
+        return create(params, width, height) != null;
+    }
+}
@@ -22,6 +22,7 @@
 
 package com.bluemarsh.benoit.render;
 
+import java.awt.Rectangle;
 import java.util.EventObject;
 
 /**
@@ -36,6 +37,10 @@ public class RenderEvent extends EventObject {
     private static final long serialVersionUID = 1L;
     /** The percentage of the set that is completely rendered. */
     private int percentDone;
+    /** The portion of the image that changed, or null if unknown. */
+    private Rectangle region;
+    /** The job being rendered, or null if unknown. */
+    private RenderJob job;
 
     /**
      * Creates a new render event object that is associated with
@@ -59,6 +64,44 @@ public class RenderEvent extends EventObject {
         percentDone = percent;
     }
 
+    /**
+     * Creates a new render event object that is associated with
+     * the given source object.
+     *
+     * @param  source    source object for this event
+     * @param  percent   percentage of set rendered
+     * @param  region    portion of the image that changed
+     */
+    public RenderEvent(Object source, int percent, Rectangle region) {
+        this(source, percent);
+        this.region = region;
+    }
+
+    /**
+     * Creates a new render event object that is associated with
+     * the given source object.
+     *
+     * @param  source    source object for this event
+     * @param  job       the job being rendered
+     * @param  percent   percentage of set rendered
+     * @param  region    portion of the image that changed
+     */
+    public RenderEvent(Object source, RenderJob job, int percent,
+                       Rectangle region) {
+        this(source, percent, region);
+        this.job = job;
+    }
+
+    /**
+     * Returns the job being rendered. Renderers may render several jobs
+     * at once, such as while a cancelled job winds down.
+     *
+     * @return  render job, or null if unknown.
+     */
+    public RenderJob getJob() {
+        return job;
+    }
+
     /**
      * Returns the percentage of the set that has been rendered so far.
      *
@@ -67,4 +110,14 @@ public class RenderEvent extends EventObject {
     public int getPercentDone() {
         return percentDone;
     }
+
+    /**
+     * Returns the portion of the image that changed since the previous
+     * event. If null, any part of the image may have changed.
+     *
+     * @return  changed region, or null if unknown.
+     */
+    public Rectangle getRegion() {
+        return region == null ? null : new Rectangle(region);
+    }
 }
@@ -0,0 +1,659 @@
+/*********************************************************************
+ *
+ *      Copyright (C) 2002-2014 Nathan Fiedler
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * $Id$
+ *
+ ********************************************************************/
+
+package com.bluemarsh.benoit.render;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The RenderExecutor runs the rendering work of the entire application
+ * on a single, bounded pool of threads. Each source of work, such as a
+ * window showing a set, has its own client with its own queue of tasks,
+ * and the threads take tasks from the clients in turn so that each
+ * client gets a fair share of the processors. The focused client is
+ * given several turns for every turn of the others.
+ *
+ * <p>The number of threads defaults to the number found by the
+ * {@link Calibration}, or else the number of processors, and may be
+ * set with the <code>benoit.render.threads</code> property. The
+ * number of threads working for any one client may be limited with the
+ * <code>benoit.render.threadsPerClient</code> property; if it is not,
+ * any one client may use all of the threads, however many there are.
+ * Both may be changed while rendering is underway.</p>
+ *
+ * <p>To leave room for other work on the machine, the priority of the
+ * threads may be lowered, and the threads may be given a duty cycle,
+ * in which case each thread rests after every task for long enough to
+ * keep its share of the time spent working to the given fraction. The
+ * clients of minimized windows may be throttled, so they run on only
+ * one thread, and only when no other client has work. These settings
+ * take effect at the next task. The executor may also be paused
+ * altogether, as it is while the calibration runs.</p>
+ *
+ * @author  Nathan Fiedler
+ */
+public class RenderExecutor {
+    /** Turns the focused client gets for each turn of the others. */
+    private static final int FOCUS_WEIGHT = 3;
+    /** Milliseconds an idle thread waits before exiting. */
+    private static final long KEEP_ALIVE = 30000;
+    /** Logger. */
+    private static Logger logger = Logger.getLogger(
+        "com.bluemarsh.benoit.render");
+    /** The application-wide executor. */
+    private static RenderExecutor defaultExecutor;
+    /** Clients with tasks in their queue, in turn order. */
+    private List clients;
+    /** Index of the client whose turn is next. */
+    private int turn;
+    /** The client whose tasks take priority, may be null. */
+    private Client focused;
+    /** Turns left for the focused client before another client's turn. */
+    private int focusCredit;
+    /** Client for work not associated with any other client. */
+    private Client defaultClient;
+    /** Maximum number of threads. */
+    private int maxThreads;
+    /** Maximum number of threads for any one client, zero if none. */
+    private int maxPerClient;
+    /** Number of threads in the pool. */
+    private int threadCount;
+    /** Number of threads waiting for work. */
+    private int idleCount;
+    /** Number used to name the next thread. */
+    private int threadNumber;
+    /** Priority of the threads. */
+    private int threadPriority = Thread.NORM_PRIORITY;
+    /** Fraction of the time each thread spends working. */
+    private double dutyCycle = 1.0;
+    /** True to throttle the clients of minimized windows. */
+    private boolean autoThrottle = true;
+    /** True while no new tasks are handed out. */
+    private boolean paused;
+    /** True once the threads should exit when out of work. */
+    private boolean shutdown;
+
+    /**
+     * Constructs a RenderExecutor.
+     *
+     * @param  maxThreads    maximum number of threads.
+     * @param  maxPerClient  maximum number of threads for any one client,
+     *                       or zero for no limit but maxThreads.
+     */
+    public RenderExecutor(int maxThreads, int maxPerClient) {
+        clients = new ArrayList();
+        setMaxThreads(maxThreads);
+        setMaxPerClient(maxPerClient);
+        defaultClient = createClient("default");
+    }
+
+    /**
+     * Creates a new client of this executor.
+     *
+     * @param  name  name of the client, for debugging.
+     * @return  new client.
+     */
+    public Client createClient(String name) {
+        return new Client(name);
+    }
+
+    /**
+     * Returns the application-wide executor, creating it if necessary.
+     *
+     * @return  render executor.
+     */
+    public static synchronized RenderExecutor getDefault() {
+        if (defaultExecutor == null) {
+            int cpus = Runtime.getRuntime().availableProcessors();
+            cpus = Tuning.getDefault().getThreadCount(cpus);
+            int max = Integer.getInteger("benoit.render.threads", cpus)
+                .intValue();
+            int per = Integer.getInteger("benoit.render.threadsPerClient",
+                                         0).intValue();
+            defaultExecutor = new RenderExecutor(max, per);
+        }
+        return defaultExecutor;
+    }
+
+    /**
+     * Applies the thread count found by the calibration to the
+     * application-wide executor, unless the count was given by the
+     * <code>benoit.render.threads</code> property.
+     */
+    public static synchronized void applyTuning() {
+        if (defaultExecutor != null
+            && System.getProperty("benoit.render.threads") == null) {
+            int cpus = Runtime.getRuntime().availableProcessors();
+            defaultExecutor.setMaxThreads(
+                Tuning.getDefault().getThreadCount(cpus));
+        }
+    }
+
+    /**
+     * Returns the client for work not associated with any other client.
+     *
+     * @return  default client.
+     */
+    public Client getDefaultClient() {
+        return defaultClient;
+    }
+
+    /**
+     * Returns the client whose tasks take priority over the others.
+     *
+     * @return  focused client, or null if none.
+     */
+    public synchronized Client getFocused() {
+        return focused;
+    }
+
+    /**
+     * Returns the fraction of the time each thread spends working.
+     *
+     * @return  duty cycle, greater than zero and at most one.
+     */
+    public synchronized double getDutyCycle() {
+        return dutyCycle;
+    }
+
+    /**
+     * Returns the priority of the threads.
+     *
+     * @return  thread priority.
+     */
+    public synchronized int getThreadPriority() {
+        return threadPriority;
+    }
+
+    /**
+     * Indicates if the clients of minimized windows are throttled.
+     *
+     * @return  true if throttled, false otherwise.
+     */
+    public synchronized boolean isAutoThrottle() {
+        return autoThrottle;
+    }
+
+    /**
+     * Returns the maximum number of threads.
+     *
+     * @return  maximum number of threads.
+     */
+    public synchronized int getMaxThreads() {
+        return maxThreads;
+    }
+
+    /**
+     * Returns the maximum number of threads working for any one client.
+     * Unless limited by <code>setMaxPerClient()</code>, this is the
+     * maximum number of threads, and so follows any change to it.
+     *
+     * @return  maximum number of threads per client.
+     */
+    public synchronized int getMaxPerClient() {
+        return maxPerClient == 0 ? maxThreads
+            : Math.min(maxPerClient, maxThreads);
+    }
+
+    /**
+     * Indicates if the executor is paused.
+     *
+     * @return  true if paused, false otherwise.
+     */
+    public synchronized boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * Sets whether the clients of minimized windows are throttled.
+     *
+     * @param  throttle  true to throttle, false otherwise.
+     */
+    public synchronized void setAutoThrottle(boolean throttle) {
+        autoThrottle = throttle;
+        notifyAll();
+    }
+
+    /**
+     * Sets the fraction of the time each thread spends working. After
+     * each task the thread rests in proportion to the time the task
+     * took, such that a duty cycle of one half leaves the thread idle
+     * half of the time.
+     *
+     * @param  duty  duty cycle, greater than zero and at most one.
+     */
+    public synchronized void setDutyCycle(double duty) {
+        if (duty <= 0.0 || duty > 1.0) {
+            throw new IllegalArgumentException("duty must be in (0, 1]");
+        }
+        dutyCycle = duty;
+    }
+
+    /**
+     * Sets whether the executor is paused. While paused no new tasks
+     * are handed to the threads; the tasks already running finish, and
+     * the queued tasks wait until the executor is resumed.
+     *
+     * @param  paused  true to pause, false to resume.
+     */
+    public synchronized void setPaused(boolean paused) {
+        this.paused = paused;
+        notifyAll();
+    }
+
+    /**
+     * Sets the priority of the threads.
+     *
+     * @param  priority  thread priority, between Thread.MIN_PRIORITY
+     *                   and Thread.MAX_PRIORITY.
+     */
+    public synchronized void setThreadPriority(int priority) {
+        if (priority < Thread.MIN_PRIORITY || priority > Thread.MAX_PRIORITY) {
+            throw new IllegalArgumentException("invalid priority");
+        }
+        threadPriority = priority;
+    }
+
+    /**
+     * Sets the client whose tasks take priority over the others.
+     *
+     * @param  client  focused client, or null for none.
+     */
+    public synchronized void setFocused(Client client) {
+        focused = client;
+        focusCredit = FOCUS_WEIGHT;
+    }
+
+    /**
+     * Sets the maximum number of threads. Excess threads exit once
+     * they finish their current task.
+     *
+     * @param  max  maximum number of threads, at least one.
+     */
+    public synchronized void setMaxThreads(int max) {
+        if (max < 1) {
+            throw new IllegalArgumentException("max must be at least one");
+        }
+        maxThreads = max;
+        startThreads();
+        notifyAll();
+    }
+
+    /**
+     * Sets the maximum number of threads working for any one client.
+     *
+     * @param  max  maximum number of threads per client, at least one;
+     *              or zero for as many as the executor has.
+     */
+    public synchronized void setMaxPerClient(int max) {
+        if (max < 0) {
+            throw new IllegalArgumentException("max must not be negative");
+        }
+        maxPerClient = max;
+        startThreads();
+        notifyAll();
+    }
+
+    /**
+     * Lets the threads exit as soon as there is no work for them, rather
+     * than after waiting a while for more. For executors made for a
+     * short piece of work, such as the calibration.
+     */
+    public synchronized void shutdown() {
+        shutdown = true;
+        notifyAll();
+    }
+
+    /**
+     * Starts more threads if there are tasks waiting and fewer threads
+     * than allowed. Must be called while synchronized.
+     */
+    private void startThreads() {
+        int waiting = 0;
+        for (int i = 0; i < clients.size(); i++) {
+            waiting += ((Client) clients.get(i)).queue.size();
+        }
+        waiting -= idleCount;
+        while (waiting > 0 && threadCount < maxThreads) {
+            threadCount++;
+            threadNumber++;
+            Thread t = new Thread(new Worker(),
+                                  "render-pool-" + threadNumber);
+            t.setDaemon(true);
+            t.start();
+            waiting--;
+        }
+    }
+
+    /**
+     * Adds a task to the queue of the given client.
+     *
+     * @param  client  client the task belongs to.
+     * @param  task    task to run.
+     */
+    protected synchronized void submit(Client client, Runnable task) {
+        client.queue.add(task);
+        if (!clients.contains(client)) {
+            clients.add(client);
+        }
+        if (idleCount > 0) {
+            notifyAll();
+        } else {
+            startThreads();
+        }
+    }
+
+    /**
+     * Indicates if any client has a task ready to run. Must be called
+     * while synchronized.
+     *
+     * @param  throttled  true to include the throttled clients.
+     * @return  true if a task is ready.
+     */
+    private boolean hasReadyClient(boolean throttled) {
+        for (int i = 0; i < clients.size(); i++) {
+            Client c = (Client) clients.get(i);
+            if (c.isReady() && (throttled || !c.isThrottled())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the next client to take a task from. The focused client
+     * takes a number of turns before another client gets one; the other
+     * clients take turns in order. Clients already using their share
+     * of the threads are passed over, as are throttled clients while
+     * any other client has work. Must be called while synchronized.
+     *
+     * @return  client with a task ready to run, or null if none.
+     */
+    private Client nextClient() {
+        if (focused != null && focusCredit > 0 && focused.isReady()
+            && !focused.isThrottled()) {
+            focusCredit--;
+            return focused;
+        }
+        focusCredit = FOCUS_WEIGHT;
+        boolean others = hasReadyClient(false);
+        int n = clients.size();
+        for (int i = 0; i < n; i++) {
+            int index = (turn + i) % n;
+            Client c = (Client) clients.get(index);
+            if (c.isReady() && (!others || !c.isThrottled())) {
+                turn = index + 1;
+                return c;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Waits for the next task to run.
+     *
+     * @return  the task to run, counted as running for its client;
+     *          or null if the calling thread should exit.
+     */
+    protected synchronized Task take() {
+        while (true) {
+            if (threadCount > maxThreads) {
+                threadCount--;
+                return null;
+            }
+            Client c = paused ? null : nextClient();
+            if (c != null) {
+                c.running++;
+                return new Task(c, (Runnable) c.queue.removeFirst());
+            }
+            if (shutdown && !hasReadyClient(true)) {
+                threadCount--;
+                return null;
+            }
+            idleCount++;
+            long start = System.currentTimeMillis();
+            try {
+                wait(KEEP_ALIVE);
+            } catch (InterruptedException ie) {
+                // Treat as a timeout.
+            } finally {
+                idleCount--;
+            }
+            if (System.currentTimeMillis() - start >= KEEP_ALIVE
+                && !hasReadyClient(true)) {
+                threadCount--;
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Notes that a task of the given client has finished.
+     *
+     * @param  client  client whose task finished.
+     */
+    protected synchronized void finished(Client client) {
+        client.running--;
+        if (client.queue.isEmpty() && client.running == 0) {
+            clients.remove(client);
+        }
+        notifyAll();
+    }
+
+    /**
+     * A source of rendering work, such as a window showing a set. Each
+     * client has its own queue of tasks.
+     */
+    public class Client {
+        /** Name of the client, for debugging. */
+        private String name;
+        /** Tasks waiting to run. */
+        private LinkedList queue;
+        /** Number of tasks of this client running now. */
+        private int running;
+        /** True if the window of this client is minimized. */
+        private boolean minimized;
+        /** True if the work of this client is not for display. */
+        private boolean background;
+
+        /**
+         * Constructs a Client.
+         *
+         * @param  name  name of the client.
+         */
+        Client(String name) {
+            this.name = name;
+            queue = new LinkedList();
+        }
+
+        /**
+         * Returns the executor of this client.
+         *
+         * @return  render executor.
+         */
+        public RenderExecutor getExecutor() {
+            return RenderExecutor.this;
+        }
+
+        /**
+         * Indicates if this client has a task that may run now. Must
+         * be called while synchronized on the executor.
+         *
+         * @return  true if a task may run.
+         */
+        boolean isReady() {
+            int max = isThrottled() ? 1 : getMaxPerClient();
+            return !queue.isEmpty() && running < max;
+        }
+
+        /**
+         * Indicates if this client is throttled. Must be called while
+         * synchronized on the executor.
+         *
+         * @return  true if throttled.
+         */
+        boolean isThrottled() {
+            return background || (minimized && autoThrottle);
+        }
+
+        /**
+         * Sets whether the work of this client is not for display, such
+         * as work done in anticipation of the user's next move. Such a
+         * client is always throttled, so it runs only when no other
+         * client has work.
+         *
+         * @param  background  true if background work, false otherwise.
+         */
+        public void setBackground(boolean background) {
+            synchronized (RenderExecutor.this) {
+                this.background = background;
+                RenderExecutor.this.notifyAll();
+            }
+        }
+
+        /**
+         * Sets whether the window of this client is minimized. The
+         * client is throttled while minimized, if the executor is set
+         * to throttle such clients.
+         *
+         * @param  minimized  true if minimized, false otherwise.
+         */
+        public void setMinimized(boolean minimized) {
+            synchronized (RenderExecutor.this) {
+                this.minimized = minimized;
+                RenderExecutor.this.notifyAll();
+            }
+        }
+
+        /**
+         * Adds a task to the queue of this client.
+         *
+         * @param  task  task to run.
+         */
+        public void submit(Runnable task) {
+            RenderExecutor.this.submit(this, task);
+        }
+
+        /**
+         * Returns the name of this client.
+         *
+         * @return  client name.
+         */
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * A task taken from the queue of a client.
+     */
+    protected static class Task {
+        /** Client the task belongs to. */
+        private Client client;
+        /** The work to be done. */
+        private Runnable runnable;
+
+        /**
+         * Constructs a Task.
+         *
+         * @param  client    client the task belongs to.
+         * @param  runnable  the work to be done.
+         */
+        Task(Client client, Runnable runnable) {
+            this.client = client;
+            this.runnable = runnable;
+        }
+    }
+
+    /**
+     * Runs the tasks of the clients until told to exit.
+     */
+    protected class Worker implements Runnable {
+        /** Rest owed for the duty cycle, in nanoseconds. */
+        private long owed;
+
+        /**
+         * Runs tasks until there are none for a while.
+         */
+        public void run() {
+            Thread thread = Thread.currentThread();
+            Task task = take();
+            try {
+                while (task != null) {
+                    int priority;
+                    double duty;
+                    synchronized (RenderExecutor.this) {
+                        priority = threadPriority;
+                        duty = dutyCycle;
+                    }
+                    if (thread.getPriority() != priority) {
+                        thread.setPriority(priority);
+                    }
+                    long start = System.nanoTime();
+                    try {
+                        task.runnable.run();
+                    } catch (RuntimeException re) {
+                        logger.log(Level.SEVERE, "render task failed", re);
+                    } finally {
+                        finished(task.client);
+                    }
+                    if (duty < 1.0) {
+                        rest(System.nanoTime() - start, duty);
+                    }
+                    task = take();
+                }
+            } finally {
+                if (task != null) {
+                    // Killed by an Error; make way for another thread.
+                    synchronized (RenderExecutor.this) {
+                        threadCount--;
+                        startThreads();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Rests after a task for long enough to keep to the duty cycle.
+         *
+         * @param  worked  time spent on the task, in nanoseconds.
+         * @param  duty    fraction of the time to spend working.
+         */
+        private void rest(long worked, double duty) {
+            // Short tasks build up the rest owed until it is worth a sleep.
+            owed += (long) (worked * (1.0 - duty) / duty);
+            long millis = owed / 1000000L;
+            if (millis > 0) {
+                owed -= millis * 1000000L;
+                try {
+                    Thread.sleep(millis);
+                } catch (InterruptedException ie) {
+                    // Go back to work.
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,472 @@
+/*********************************************************************
+ *
+ *      Copyright (C) 2002-2014 Nathan Fiedler
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * $Id$
+ *
+ ********************************************************************/
+
+package com.bluemarsh.benoit.render;
+
+import com.bluemarsh.benoit.model.Parameters;
+import java.awt.Image;
+import java.awt.Rectangle;
+
+/**
+ * A RenderJob describes one request to render a region of the set:
+ * the image to render to, the region boundaries, and the quality of
+ * the render. The quality is given by the dwell limit and the sample
+ * step, which is the distance in pixels between computed points.
+ *
+ * @author  Nathan Fiedler
+ */
+public class RenderJob {
+    /** The dwell limit used when none is given. */
+    public static final int DEFAULT_DWELL_LIMIT = 100;
+    /** Image to render to. */
+    private Image image;
+    /** Images to render to and display, may be null. */
+    private FrameBuffer frame;
+    /** Boundaries of region to draw. */
+    private Parameters params;
+    /** Maximum number of iterations per point. */
+    private int dwellLimit;
+    /** Distance in pixels between computed points (a power of two). */
+    private int step;
+    /** Samples computed so far, possibly by an earlier job. */
+    private DwellData samples;
+    /** Percentage reported when the job starts. */
+    private int progressBase;
+    /** Percentage covered by this job. */
+    private int progressSpan;
+    /** Order in which the tiles are rendered, may be null. */
+    private TileOrder tileOrder;
+    /** Signals that the job should stop. */
+    private CancelToken cancelToken;
+    /** Records the progress of the job, may be null. */
+    private Checkpoint checkpoint;
+    /** Client of the render executor that runs the job, may be null. */
+    private RenderExecutor.Client client;
+    /** Cache of points computed by earlier jobs, may be null. */
+    private TileCache tileCache;
+    /** True to order the tiles of later passes by estimated cost. */
+    private boolean costScheduled = true;
+    /** True if the job renders a preview of the region. */
+    private boolean preview;
+    /** Time spent by the threads rendering tiles, in nanoseconds. */
+    private long busyTime;
+    /** Time the threads were available for rendering, in nanoseconds. */
+    private long availableTime;
+
+    /**
+     * Constructs a full quality RenderJob.
+     *
+     * @param  image   image to render to.
+     * @param  params  boundaries of region to draw.
+     */
+    public RenderJob(Image image, Parameters params) {
+        this(image, params, DEFAULT_DWELL_LIMIT);
+    }
+
+    /**
+     * Constructs a full resolution RenderJob.
+     *
+     * @param  image       image to render to.
+     * @param  params      boundaries of region to draw.
+     * @param  dwellLimit  maximum number of iterations per point.
+     */
+    public RenderJob(Image image, Parameters params, int dwellLimit) {
+        this.image = image;
+        this.params = params;
+        this.dwellLimit = dwellLimit;
+        step = 1;
+        progressSpan = 100;
+        cancelToken = new CancelToken();
+    }
+
+    /**
+     * Constructs a full resolution RenderJob that renders to the back
+     * image of the frame buffer, publishing each finished tile to the
+     * front image.
+     *
+     * @param  frame       images to render to and display.
+     * @param  params      boundaries of region to draw.
+     * @param  dwellLimit  maximum number of iterations per point.
+     */
+    public RenderJob(FrameBuffer frame, Parameters params, int dwellLimit) {
+        this(frame.getBackImage(), params, dwellLimit);
+        this.frame = frame;
+    }
+
+    /**
+     * Creates a job for another pass of the same render: it renders
+     * the same region to the same image, with the same samples, tile
+     * order, token, client and progress range as this one, but at the
+     * given step and dwell limit. The checkpoint and tile cache are not
+     * carried over.
+     *
+     * @param  step        distance in pixels between computed points.
+     * @param  dwellLimit  maximum number of iterations per point.
+     * @return  new job.
+     */
+    public RenderJob derive(int step, int dwellLimit) {
+        RenderJob job = new RenderJob(image, params, dwellLimit);
+        job.frame = frame;
+        job.step = step;
+        job.samples = getSamples();
+        job.tileOrder = tileOrder;
+        job.cancelToken = cancelToken;
+        job.client = client;
+        job.costScheduled = costScheduled;
+        job.preview = preview;
+        job.progressBase = progressBase;
+        job.progressSpan = progressSpan;
+        return job;
+    }
+
+    /**
+     * Returns the token that signals the job should stop.
+     *
+     * @return  cancel token.
+     */
+    public CancelToken getCancelToken() {
+        return cancelToken;
+    }
+
+    /**
+     * Returns the checkpoint that records the progress of this job.
+     *
+     * @return  checkpoint, or null if none.
+     */
+    public Checkpoint getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * Returns the client of the render executor on whose behalf the
+     * job is run.
+     *
+     * @return  executor client; the default client if none was set.
+     */
+    public RenderExecutor.Client getClient() {
+        return client == null
+            ? RenderExecutor.getDefault().getDefaultClient() : client;
+    }
+
+    /**
+     * Returns the load balance achieved by the passes rendered so far,
+     * which is the time the threads spent rendering as a fraction of
+     * the time they were available to the job. Time lost waiting on a
+     * slow tile at the end of a pass, or to other work sharing the
+     * render executor, lowers the balance.
+     *
+     * @return  balance between zero and one, or one if not yet known.
+     */
+    public synchronized double getLoadBalance() {
+        return availableTime == 0 ? 1.0
+            : Math.min(1.0, (double) busyTime / availableTime);
+    }
+
+    /**
+     * Records the timing of a finished pass.
+     *
+     * @param  busy     time spent by the threads rendering tiles.
+     * @param  elapsed  time from start to end of the pass.
+     * @param  threads  number of threads rendering the pass.
+     */
+    public synchronized void addPassTiming(long busy, long elapsed,
+                                           int threads) {
+        busyTime += busy;
+        availableTime += elapsed * threads;
+    }
+
+    /**
+     * Returns the dwell limit for this job.
+     *
+     * @return  maximum number of iterations per point.
+     */
+    public int getDwellLimit() {
+        return dwellLimit;
+    }
+
+    /**
+     * Returns the image to render to.
+     *
+     * @return  image.
+     */
+    public Image getImage() {
+        return image;
+    }
+
+    /**
+     * Returns the boundaries of the region to draw.
+     *
+     * @return  region boundaries.
+     */
+    public Parameters getParameters() {
+        return params;
+    }
+
+    /**
+     * Returns the percentage reported when this job starts.
+     *
+     * @return  base percentage.
+     */
+    public int getProgressBase() {
+        return progressBase;
+    }
+
+    /**
+     * Returns the percentage covered by this job, such that the job
+     * reports the sum of base and span when it finishes.
+     *
+     * @return  percentage span.
+     */
+    public int getProgressSpan() {
+        return progressSpan;
+    }
+
+    /**
+     * Returns the samples for this job, creating them if necessary.
+     *
+     * @return  dwell data for the image.
+     */
+    public synchronized DwellData getSamples() {
+        if (samples == null) {
+            samples = new DwellData(image.getWidth(null),
+                                    image.getHeight(null));
+        }
+        return samples;
+    }
+
+    /**
+     * Returns the distance in pixels between computed points.
+     *
+     * @return  sample step, one for full resolution.
+     */
+    public int getStep() {
+        return step;
+    }
+
+    /**
+     * Returns the order in which the tiles are to be rendered.
+     *
+     * @return  tile order; column by column if none was set.
+     */
+    public TileOrder getTileOrder() {
+        return tileOrder == null ? new ColumnOrder() : tileOrder;
+    }
+
+    /**
+     * Returns the cache of points computed by earlier jobs, from which
+     * this job takes the points it has in common with them.
+     *
+     * @return  tile cache, or null if none.
+     */
+    public TileCache getTileCache() {
+        return tileCache;
+    }
+
+    /**
+     * Indicates if a tile order was given for this job.
+     *
+     * @return  true if an order was set, false if the default is used.
+     */
+    public boolean hasTileOrder() {
+        return tileOrder != null;
+    }
+
+    /**
+     * Indicates if the tiles of the later passes of the job are ordered
+     * by their cost, as estimated from the earlier passes.
+     *
+     * @return  true if cost scheduled, false otherwise.
+     */
+    public boolean isCostScheduled() {
+        return costScheduled;
+    }
+
+    /**
+     * Indicates if the job renders a preview, which may be computed
+     * with less precision than a full render.
+     *
+     * @return  true if a preview, false otherwise.
+     */
+    public boolean isPreview() {
+        return preview;
+    }
+
+    /**
+     * Indicates if the job should stop, either because its token was
+     * cancelled or because the current thread was interrupted.
+     *
+     * @return  true if the job should stop, false otherwise.
+     */
+    public boolean isCancelled() {
+        return cancelToken.isCancelled()
+            || Thread.currentThread().isInterrupted();
+    }
+
+    /**
+     * Indicates if the job is paused. The renderer puts the job aside
+     * until it is resumed, rather than wait for it.
+     *
+     * @return  true if paused, false otherwise.
+     */
+    public boolean isPaused() {
+        return cancelToken.isPaused();
+    }
+
+    /**
+     * Makes the given region of the image visible to the user, if the
+     * job renders to a frame buffer. Otherwise does nothing, as the
+     * image being rendered to is the image on display.
+     *
+     * @param  region  finished region of the image.
+     */
+    public void publish(Rectangle region) {
+        if (frame != null) {
+            frame.publish(region);
+        }
+    }
+
+    /**
+     * Runs the given work once the job is no longer paused; at once if
+     * it is not paused now. The checkpoint of a paused job, if any, is
+     * saved first, so that it survives the application being closed
+     * while paused.
+     *
+     * @param  task  brief work to run, such as submitting a task.
+     */
+    public void whenResumed(Runnable task) {
+        if (checkpoint != null && cancelToken.isPaused()) {
+            checkpoint.saveIfOlder(cancelToken.getPausedAt());
+        }
+        cancelToken.whenResumed(task);
+    }
+
+    /**
+     * Sets the token that signals the job should stop. Jobs that make
+     * up a single render may share one token.
+     *
+     * @param  token  cancel token.
+     */
+    public void setCancelToken(CancelToken token) {
+        cancelToken = token;
+    }
+
+    /**
+     * Sets the checkpoint that records the progress of this job. The
+     * renderer records each tile it finishes at the step of the job.
+     *
+     * @param  checkpoint  checkpoint, may be null.
+     */
+    public void setCheckpoint(Checkpoint checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    /**
+     * Sets the client of the render executor on whose behalf the job
+     * is run. The tiles of the job share the processors fairly with
+     * the work of the other clients.
+     *
+     * @param  client  executor client, may be null.
+     */
+    public void setClient(RenderExecutor.Client client) {
+        this.client = client;
+    }
+
+    /**
+     * Sets whether the job is rendered starting with a coarse pass from
+     * which the cost of each tile is estimated, so that the later passes
+     * can start on the most expensive tiles and split the worst of them.
+     * This is on by default.
+     *
+     * @param  scheduled  true to schedule by cost, false otherwise.
+     */
+    public void setCostScheduled(boolean scheduled) {
+        costScheduled = scheduled;
+    }
+
+    /**
+     * Sets whether the job renders a preview of the region. The renderer
+     * may compute a preview with faster, less precise arithmetic, in
+     * which case the samples are computed again by the next full job.
+     *
+     * @param  preview  true if a preview, false otherwise.
+     */
+    public void setPreview(boolean preview) {
+        this.preview = preview;
+    }
+
+    /**
+     * Sets the range of percentages this job reports as it runs.
+     * This allows several jobs to report as one render.
+     *
+     * @param  base  percentage reported when the job starts.
+     * @param  span  percentage covered by this job.
+     */
+    public void setProgress(int base, int span) {
+        progressBase = base;
+        progressSpan = span;
+    }
+
+    /**
+     * Sets the samples this job should start from. Samples computed by
+     * a previous job for the same region and image size will be reused
+     * rather than computed again.
+     *
+     * @param  samples  dwell data for the image.
+     */
+    public synchronized void setSamples(DwellData samples) {
+        this.samples = samples;
+    }
+
+    /**
+     * Sets the distance in pixels between computed points. Each
+     * computed point is drawn as a square of this size.
+     *
+     * @param  step  sample step, a power of two.
+     */
+    public void setStep(int step) {
+        if (step < 1 || (step & (step - 1)) != 0) {
+            throw new IllegalArgumentException("step must be power of two");
+        }
+        this.step = step;
+    }
+
+    /**
+     * Sets the cache of points computed by earlier jobs. If the region
+     * of the job lies on a pixel grid, the renderer takes the points it
+     * can from the cache, and saves the points of the finished job to
+     * the cache. Previews neither use nor add to the cache.
+     *
+     * @param  cache  tile cache, may be null.
+     */
+    public void setTileCache(TileCache cache) {
+        tileCache = cache;
+    }
+
+    /**
+     * Sets the order in which the tiles are to be rendered.
+     *
+     * @param  order  tile order, may be null.
+     */
+    public void setTileOrder(TileOrder order) {
+        tileOrder = order;
+    }
+}
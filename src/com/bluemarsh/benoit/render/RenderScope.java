@@ -0,0 +1,304 @@
+/*********************************************************************
+ *
+ *      Copyright (C) 2002-2014 Nathan Fiedler
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * $Id$
+ *
+ ********************************************************************/
+
+package com.bluemarsh.benoit.render;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A RenderScope ties the lifetime of the tasks of a render to a single
+ * owner. Tasks forked in a scope run on their own lightweight threads
+ * and share the cancel token of the scope. Closing the scope cancels
+ * the token, which stops all of its tasks, and closes any nested scopes
+ * as well, so nothing started for a render outlives it. Closing never
+ * blocks; the tasks wind down on their own, and {@link #join(long)} is
+ * available to wait for them if need be.
+ *
+ * <p>The threads of a scope mostly wait on the render executor, so
+ * they are virtual threads when the runtime provides them, and daemon
+ * platform threads otherwise. The computation itself is always done
+ * by the bounded pool of the render executor.</p>
+ *
+ * @author  Nathan Fiedler
+ */
+public class RenderScope {
+    /** Creates a virtual thread builder, if supported. */
+    private static Method ofVirtual;
+    /** Sets the name of the threads of a builder. */
+    private static Method builderName;
+    /** Creates an unstarted thread from a builder. */
+    private static Method builderUnstarted;
+    /** Name of the scope, used to name its threads. */
+    private String name;
+    /** Enclosing scope, may be null. */
+    private RenderScope parent;
+    /** Signals the tasks of the scope to stop. */
+    private CancelToken token;
+    /** Nested scopes that have tasks running. */
+    private List children;
+    /** Threads of the tasks still running. */
+    private List threads;
+    /** Number of tasks forked so far, used to name the threads. */
+    private int forkCount;
+    /** True once the scope has been closed. */
+    private boolean closed;
+
+    static {
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual", new Class[0]);
+            Class builder = Class.forName("java.lang.Thread$Builder");
+            builderName = builder.getMethod("name",
+                                            new Class[] { String.class });
+            builderUnstarted = builder.getMethod(
+                "unstarted", new Class[] { Runnable.class });
+        } catch (Exception e) {
+            // Virtual threads are not available.
+            ofVirtual = null;
+        }
+    }
+
+    /**
+     * Constructs a top-level RenderScope.
+     *
+     * @param  name  name of the scope.
+     */
+    public RenderScope(String name) {
+        this(null, name);
+    }
+
+    /**
+     * Constructs a RenderScope nested within another. The nested scope
+     * is closed when the enclosing scope is closed.
+     *
+     * @param  parent  enclosing scope, may be null.
+     * @param  name    name of the scope.
+     */
+    public RenderScope(RenderScope parent, String name) {
+        this.parent = parent;
+        this.name = name;
+        token = new CancelToken();
+        children = new ArrayList();
+        threads = new ArrayList();
+        if (parent != null && parent.isClosed()) {
+            close();
+        }
+    }
+
+    /**
+     * Closes the scope, cancelling its token and closing its nested
+     * scopes. Returns immediately. Closing a closed scope does nothing.
+     */
+    public void close() {
+        RenderScope[] nested;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            nested = (RenderScope[]) children.toArray(
+                new RenderScope[children.size()]);
+        }
+        token.cancel();
+        for (int i = 0; i < nested.length; i++) {
+            nested[i].close();
+        }
+    }
+
+    /**
+     * Starts the given task on a new thread within this scope.
+     *
+     * @param  task  task to run.
+     * @return  the thread running the task.
+     * @throws  IllegalStateException
+     *          if the scope has been closed.
+     */
+    public Thread fork(final Runnable task) {
+        Thread thread;
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("scope is closed");
+            }
+            forkCount++;
+            thread = newThread(new Runnable() {
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        taskDone(Thread.currentThread());
+                    }
+                }
+            }, name + "-" + forkCount);
+            boolean wasIdle = threads.isEmpty();
+            threads.add(thread);
+            if (wasIdle && parent != null) {
+                parent.addChild(this);
+            }
+        }
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Returns the number of tasks of this scope still running, not
+     * counting those of nested scopes.
+     *
+     * @return  number of running tasks.
+     */
+    public synchronized int getActiveCount() {
+        return threads.size();
+    }
+
+    /**
+     * Returns the token that signals the tasks of this scope to stop.
+     *
+     * @return  cancel token.
+     */
+    public CancelToken getToken() {
+        return token;
+    }
+
+    /**
+     * Indicates if the scope has been closed.
+     *
+     * @return  true if closed, false otherwise.
+     */
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Indicates if the threads of new scopes are virtual threads.
+     *
+     * @return  true if virtual, false if platform threads.
+     */
+    public static boolean isVirtual() {
+        return ofVirtual != null;
+    }
+
+    /**
+     * Waits for the tasks of this scope and its nested scopes to finish.
+     *
+     * @param  millis  longest time to wait, in milliseconds.
+     * @return  true if all tasks finished, false if the time ran out.
+     * @throws  InterruptedException
+     *          if the thread is interrupted while waiting.
+     */
+    public boolean join(long millis) throws InterruptedException {
+        long end = System.currentTimeMillis() + millis;
+        synchronized (this) {
+            long remaining = millis;
+            while (!threads.isEmpty()) {
+                if (remaining <= 0) {
+                    return false;
+                }
+                wait(remaining);
+                remaining = end - System.currentTimeMillis();
+            }
+        }
+        RenderScope[] nested;
+        synchronized (this) {
+            nested = (RenderScope[]) children.toArray(
+                new RenderScope[children.size()]);
+        }
+        for (int i = 0; i < nested.length; i++) {
+            long remaining = end - System.currentTimeMillis();
+            if (!nested[i].join(Math.max(remaining, 0))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Creates a thread to run the given task, a virtual thread if the
+     * runtime supports them, otherwise a daemon platform thread.
+     *
+     * @param  task  task to run.
+     * @param  name  name of the thread.
+     * @return  new, unstarted thread.
+     */
+    public static Thread newThread(Runnable task, String name) {
+        if (ofVirtual != null) {
+            try {
+                Object builder = ofVirtual.invoke(null, new Object[0]);
+                builder = builderName.invoke(builder, new Object[] { name });
+                return (Thread) builderUnstarted.invoke(
+                    builder, new Object[] { task });
+            } catch (Exception e) {
+                // Fall back to a platform thread.
+                ofVirtual = null;
+            }
+        }
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * Adds a nested scope that has tasks running.
+     *
+     * @param  child  nested scope.
+     */
+    private void addChild(RenderScope child) {
+        boolean close;
+        synchronized (this) {
+            if (!children.contains(child)) {
+                children.add(child);
+            }
+            close = closed;
+        }
+        if (close) {
+            child.close();
+        }
+    }
+
+    /**
+     * Removes a nested scope whose tasks have all finished.
+     *
+     * @param  child  nested scope.
+     */
+    private synchronized void removeChild(RenderScope child) {
+        children.remove(child);
+        notifyAll();
+    }
+
+    /**
+     * Notes that the task running on the given thread has finished.
+     * Once the last task is finished the scope is dropped from the
+     * enclosing scope, so finished renders are not kept around.
+     *
+     * @param  thread  thread that ran the task.
+     */
+    private void taskDone(Thread thread) {
+        boolean idle;
+        synchronized (this) {
+            threads.remove(thread);
+            idle = threads.isEmpty();
+            notifyAll();
+        }
+        if (idle && parent != null) {
+            parent.removeChild(this);
+        }
+    }
+}
@@ -53,4 +53,13 @@ public interface Renderer {
      * @param  params  boundaries of region to draw.
      */
     void render(Image image, Parameters params);
+
+    /**
+     * Render the region of the set described by the job, at the
+     * quality given by the job.
+     *
+     * @param  job  describes the region and quality of the render.
+     * @return  true if the render completed, false if interrupted.
+     */
+    boolean render(RenderJob job);
 }
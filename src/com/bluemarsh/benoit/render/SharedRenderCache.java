@@ -0,0 +1,278 @@
+/*********************************************************************
+ *
+ *      Copyright (C) 2002-2014 Nathan Fiedler
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * $Id$
+ *
+ ********************************************************************/
+
+package com.bluemarsh.benoit.render;
+
+import com.bluemarsh.benoit.model.BenoitNumber;
+import com.bluemarsh.benoit.model.Parameters;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Shares finished renders between all of the windows of the program.
+ * Renders are keyed by a canonical form of their region, number type,
+ * scale, image size and dwell limit, and their dwell data is kept,
+ * packed, within a budget of memory. A window about to render a region
+ * that another window is already rendering waits for that render to
+ * finish, rather than computing the same points a second time.
+ *
+ * <p>The window that starts a render first <em>claims</em> its key,
+ * and must either <em>put</em> the result or <em>release</em> the key
+ * if the render was stopped, at which point one of the waiting windows
+ * claims the key in its place.</p>
+ *
+ * @author  Nathan Fiedler
+ */
+public class SharedRenderCache {
+    /** Milliseconds between checks for cancellation while waiting. */
+    private static final long POLL_INTERVAL = 100;
+    /** The process-wide cache. */
+    private static SharedRenderCache defaultCache;
+    /** Packed dwell data of finished renders, least recent first. */
+    private Map entries;
+    /** Keys of the renders now underway. */
+    private Set inFlight;
+    /** Most bytes the cache may hold. */
+    private long budget;
+    /** Bytes presently held. */
+    private long size;
+    /** Number of lookups that found a finished render. */
+    private int hits;
+    /** Number of renders that waited on another render. */
+    private int coalesced;
+    /** Number of finished renders dropped to stay within budget. */
+    private int evictions;
+
+    /**
+     * Constructs a SharedRenderCache.
+     *
+     * @param  budget  most bytes the cache may hold.
+     */
+    public SharedRenderCache(long budget) {
+        this.budget = budget;
+        entries = new LinkedHashMap(16, 0.75f, true);
+        inFlight = new HashSet();
+    }
+
+    /**
+     * Returns the process-wide cache, creating it if necessary. Its
+     * budget is given by the <code>benoit.render.cacheBudget</code>
+     * property in bytes, by default 16 MB.
+     *
+     * @return  shared render cache.
+     */
+    public static synchronized SharedRenderCache getDefault() {
+        if (defaultCache == null) {
+            long budget = Long.getLong("benoit.render.cacheBudget",
+                                       16L * 1024 * 1024).longValue();
+            defaultCache = new SharedRenderCache(budget);
+        }
+        return defaultCache;
+    }
+
+    /**
+     * Waits until no render is underway for the given key.
+     *
+     * @param  key    render key.
+     * @param  token  signals that the waiting should stop.
+     * @return  true if the render finished or was released, false if
+     *          the token was cancelled or the thread interrupted.
+     */
+    public synchronized boolean await(String key, CancelToken token) {
+        if (inFlight.contains(key)) {
+            coalesced++;
+        }
+        while (inFlight.contains(key)) {
+            if (token.isCancelled()) {
+                return false;
+            }
+            try {
+                wait(POLL_INTERVAL);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return !token.isCancelled();
+    }
+
+    /**
+     * Claims the given key for a render about to start, if no other
+     * render has claimed it.
+     *
+     * @param  key  render key.
+     * @return  true if claimed, false if another render is underway.
+     */
+    public synchronized boolean claim(String key) {
+        return inFlight.add(key);
+    }
+
+    /**
+     * Returns the canonical form of the given number, which is the same
+     * for equal values however they were written.
+     *
+     * @param  n  number.
+     * @return  canonical string.
+     */
+    private static String canonical(BenoitNumber n) {
+        if (n.getType() == BenoitNumber.BIG_TYPE) {
+            return n.bigValue().stripTrailingZeros().toString();
+        }
+        return String.valueOf(n.doubleValue());
+    }
+
+    /**
+     * Creates the key of the render of the given region.
+     *
+     * @param  params      boundaries of region.
+     * @param  width       width of the image.
+     * @param  height      height of the image.
+     * @param  dwellLimit  dwell limit of the render.
+     * @return  render key.
+     */
+    public static String createKey(Parameters params, int width, int height,
+                                   int dwellLimit) {
+        int type = params.getMinX().getType();
+        StringBuffer sb = new StringBuffer();
+        sb.append(type);
+        if (type == BenoitNumber.BIG_TYPE) {
+            sb.append('/').append(params.getScale());
+        }
+        sb.append('/').append(canonical(params.getMinX()));
+        sb.append('/').append(canonical(params.getMaxX()));
+        sb.append('/').append(canonical(params.getMinY()));
+        sb.append('/').append(canonical(params.getMaxY()));
+        sb.append('/').append(width).append('x').append(height);
+        sb.append('/').append(dwellLimit);
+        return sb.toString();
+    }
+
+    /**
+     * Returns the dwell data of the finished render for the given key.
+     *
+     * @param  key  render key.
+     * @return  a copy of the dwell data, or null if not cached.
+     */
+    public synchronized DwellData get(String key) {
+        byte[] packed = (byte[]) entries.get(key);
+        if (packed == null) {
+            return null;
+        }
+        try {
+            DwellData data = DwellCodec.decode(packed);
+            hits++;
+            return data;
+        } catch (IOException ioe) {
+            remove(key);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the number of renders that waited on another render.
+     *
+     * @return  coalesced count.
+     */
+    public synchronized int getCoalescedCount() {
+        return coalesced;
+    }
+
+    /**
+     * Returns the number of finished renders dropped to stay within
+     * the budget.
+     *
+     * @return  eviction count.
+     */
+    public synchronized int getEvictionCount() {
+        return evictions;
+    }
+
+    /**
+     * Returns the number of lookups that found a finished render.
+     *
+     * @return  hit count.
+     */
+    public synchronized int getHitCount() {
+        return hits;
+    }
+
+    /**
+     * Saves the dwell data of a finished render and releases its key,
+     * waking the renders waiting on it.
+     *
+     * @param  key   render key.
+     * @param  data  dwell data of the render.
+     */
+    public synchronized void put(String key, DwellData data) {
+        remove(key);
+        byte[] packed = DwellCodec.encode(data, true);
+        if (packed.length <= budget) {
+            entries.put(key, packed);
+            size += packed.length;
+            Iterator iter = entries.values().iterator();
+            while (size > budget && iter.hasNext()) {
+                size -= ((byte[]) iter.next()).length;
+                iter.remove();
+                evictions++;
+            }
+        }
+        release(key);
+    }
+
+    /**
+     * Releases the key of a render that did not finish, waking the
+     * renders waiting on it so that one of them may claim it.
+     *
+     * @param  key  render key.
+     */
+    public synchronized void release(String key) {
+        inFlight.remove(key);
+        notifyAll();
+    }
+
+    /**
+     * Removes the finished render for the given key.
+     *
+     * @param  key  render key.
+     */
+    private void remove(String key) {
+        byte[] packed = (byte[]) entries.remove(key);
+        if (packed != null) {
+            size -= packed.length;
+        }
+    }
+
+    /**
+     * Returns a summary of the cache usage.
+     *
+     * @return  summary string.
+     */
+    public synchronized String toString() {
+        return "SharedRenderCache=[entries=" + entries.size() + ", size="
+            + size + ", budget=" + budget + ", hits=" + hits
+            + ", coalesced=" + coalesced + ", evictions=" + evictions + "]";
+    }
+}
@@ -0,0 +1,88 @@
+/*********************************************************************
+ *
+ *      Copyright (C) 2002-2014 Nathan Fiedler
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * $Id$
+ *
+ ********************************************************************/
+
+package com.bluemarsh.benoit.render;
+
+import java.awt.Point;
+
+/**
+ * Orders the tiles in a spiral around a focus point, such that the
+ * tiles nearest the focus come first. Each ring of tiles around the
+ * focus is finished before the next ring is started.
+ *
+ * @author  Nathan Fiedler
+ */
+public class SpiralOrder implements TileOrder {
+    /** Focus point of the spiral, in image coordinates. */
+    private Point focus;
+
+    /**
+     * Constructs a SpiralOrder around the given point.
+     *
+     * @param  focus  focus point, in image coordinates.
+     */
+    public SpiralOrder(Point focus) {
+        this.focus = new Point(focus);
+    }
+
+    /**
+     * Returns the focus point of the spiral.
+     *
+     * @return  focus point, in image coordinates.
+     */
+    public Point getFocus() {
+        return new Point(focus);
+    }
+
+    /**
+     * Returns the priority of the given tile, which is the ring of the
+     * spiral in which the tile lies, plus a fraction for the angle of
+     * the tile around the focus.
+     *
+     * @param  tile  tile to be ranked.
+     * @return  priority of the tile.
+     */
+    public double priority(Tile tile) {
+        int size = Math.max(tile.getWidth(), tile.getHeight());
+        double dx = tile.getX() + tile.getWidth() / 2.0 - focus.x;
+        double dy = tile.getY() + tile.getHeight() / 2.0 - focus.y;
+        if (tile.getX() <= focus.x && focus.x < tile.getX() + tile.getWidth()
+            && tile.getY() <= focus.y
+            && focus.y < tile.getY() + tile.getHeight()) {
+            // The tile under the focus always comes first.
+            return 0.0;
+        }
+        double ring = Math.floor(Math.max(Math.abs(dx), Math.abs(dy))
+                                 / size + 0.5);
+        double angle = (Math.atan2(dy, dx) + Math.PI) / (2.0 * Math.PI);
+        return Math.max(ring, 1.0) + Math.min(angle, 0.999);
+    }
+
+    /**
+     * Does nothing as this order never changes.
+     *
+     * @return  always false.
+     */
+    public boolean update() {
+        return false;
+    }
+}
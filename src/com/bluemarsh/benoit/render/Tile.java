@@ -0,0 +1,153 @@
+/*********************************************************************
+ *
+ *      Copyright (C) 2002-2014 Nathan Fiedler
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * $Id$
+ *
+ ********************************************************************/
+
+package com.bluemarsh.benoit.render;
+
+/**
+ * A rectangular portion of the rendered image. Renderers divide the
+ * image into tiles and render them one at a time, in an order that
+ * depends on what the user is most likely to look at first.
+ *
+ * @author  Nathan Fiedler
+ */
+public class Tile {
+    /** Left-most column of the tile. */
+    private int x;
+    /** Top-most row of the tile. */
+    private int y;
+    /** Width of the tile. */
+    private int width;
+    /** Height of the tile. */
+    private int height;
+    /** Tile this one was split from, may be null. */
+    private Tile parent;
+
+    /**
+     * Constructs a Tile.
+     *
+     * @param  x       left-most column of the tile.
+     * @param  y       top-most row of the tile.
+     * @param  width   width of the tile.
+     * @param  height  height of the tile.
+     */
+    public Tile(int x, int y, int width, int height) {
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Constructs a Tile that is part of a larger tile.
+     *
+     * @param  x       left-most column of the tile.
+     * @param  y       top-most row of the tile.
+     * @param  width   width of the tile.
+     * @param  height  height of the tile.
+     * @param  parent  tile this one was split from.
+     */
+    public Tile(int x, int y, int width, int height, Tile parent) {
+        this(x, y, width, height);
+        this.parent = parent;
+    }
+
+    /**
+     * Returns the height of the tile.
+     *
+     * @return  height in pixels.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the tile from which this tile was originally split, or
+     * this tile if it was never split from another.
+     *
+     * @return  outermost tile.
+     */
+    public Tile getRoot() {
+        Tile root = this;
+        while (root.parent != null) {
+            root = root.parent;
+        }
+        return root;
+    }
+
+    /**
+     * Returns the width of the tile.
+     *
+     * @return  width in pixels.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns the left-most column of the tile.
+     *
+     * @return  x coordinate.
+     */
+    public int getX() {
+        return x;
+    }
+
+    /**
+     * Returns the top-most row of the tile.
+     *
+     * @return  y coordinate.
+     */
+    public int getY() {
+        return y;
+    }
+
+    /**
+     * Splits the tile into quarters whose edges lie on the grid of the
+     * given step, so that they may be rendered separately at that step.
+     *
+     * @param  step  sample step of the grid.
+     * @return  the four quarters, or null if the tile is too small.
+     */
+    public Tile[] split(int step) {
+        int w = width / 2 / step * step;
+        int h = height / 2 / step * step;
+        if (w < step || h < step) {
+            return null;
+        }
+        return new Tile[] {
+            new Tile(x, y, w, h, this),
+            new Tile(x + w, y, width - w, h, this),
+            new Tile(x, y + h, w, height - h, this),
+            new Tile(x + w, y + h, width - w, height - h, this)
+        };
+    }
+
+    /**
+     * Returns the string representation of this tile.
+     *
+     * @return  the string representation of this tile.
+     */
+    public String toString() {
+        return "Tile=[x=" + x + ", y=" + y + ", width=" + width
+            + ", height=" + height + "]";
+    }
+}
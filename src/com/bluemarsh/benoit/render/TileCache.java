@@ -0,0 +1,379 @@
+/*********************************************************************
+ *
+ *      Copyright (C) 2002-2014 Nathan Fiedler
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * $Id$
+ *
+ ********************************************************************/
+
+package com.bluemarsh.benoit.render;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the dwells computed by earlier renders in square tiles laid
+ * over a pixel grid, so that a view overlapping an earlier view at the
+ * same zoom computes only the points the earlier view did not cover.
+ * The tiles of each grid are numbered from the origin of the complex
+ * plane, not from the corner of any one view, and each tile holds the
+ * dwells of the points computed so far, zero for those not computed.
+ * The least recently used tiles are dropped to stay within a budget of
+ * memory.
+ *
+ * <p>The grids whose pitches differ by powers of two form the levels of
+ * a quadtree over the plane: each tile covers the same area as four
+ * tiles of the next finer level, and each of its points is a point of
+ * that level. A view takes the points it shares with the cached levels
+ * above and below its own, so that zooming in or out by a power of two
+ * reuses the points already computed. Only points that coincide
+ * exactly with view pixels are reused; nothing is inferred for the
+ * pixels between them.</p>
+ *
+ * @author  Nathan Fiedler
+ */
+public class TileCache {
+    /** Width and height of the cached tiles. */
+    public static final int TILE_SIZE = 32;
+    /** Number of coarser levels consulted when filling a view. */
+    private static final int COARSER_LEVELS = 4;
+    /** Number of finer levels consulted when filling a view. */
+    private static final int FINER_LEVELS = 3;
+    /** Views further than this from the origin skip the finer levels. */
+    private static final long FINER_LIMIT = Long.MAX_VALUE >> 8;
+    /** Bytes of each cached tile, counting its key and map entry. */
+    private static final int TILE_BYTES = TILE_SIZE * TILE_SIZE * 4 + 128;
+    /** The process-wide cache. */
+    private static TileCache defaultCache;
+    /** Dwells of the cached tiles, least recent first. */
+    private Map tiles;
+    /** Number of cached tiles (int[1]) by key prefix of their level. */
+    private Map levels;
+    /** Most tiles the cache may hold. */
+    private int capacity;
+    /** Number of points taken from the cache. */
+    private long hits;
+    /** Number of tiles dropped to stay within budget. */
+    private int evictions;
+
+    /**
+     * Constructs a TileCache.
+     *
+     * @param  budget  most bytes the cache may hold.
+     */
+    public TileCache(long budget) {
+        capacity = (int) Math.min(Integer.MAX_VALUE, budget / TILE_BYTES);
+        tiles = new LinkedHashMap(16, 0.75f, true);
+        levels = new HashMap();
+    }
+
+    /**
+     * Returns the process-wide cache, creating it if necessary. Its
+     * budget is given by the <code>benoit.render.tileBudget</code>
+     * property in bytes, by default 16 MB.
+     *
+     * @return  shared tile cache.
+     */
+    public static synchronized TileCache getDefault() {
+        if (defaultCache == null) {
+            long budget = Long.getLong("benoit.render.tileBudget",
+                                       16L * 1024 * 1024).longValue();
+            defaultCache = new TileCache(budget);
+        }
+        return defaultCache;
+    }
+
+    /**
+     * Copies the dwells of the points at one coarser level of the tree
+     * into the samples. Every point of the coarser level lies on a
+     * pixel of the view; the view pixels between those points are left
+     * to be computed, as nothing is known of them.
+     *
+     * @param  prefix   key prefix of the coarser level.
+     * @param  scale    pixels of the view per pixel of the level.
+     * @param  gx0      grid column of the first column of the view.
+     * @param  gy0      grid row of the first row of the view.
+     * @param  samples  samples of the view.
+     * @return  number of points filled in.
+     */
+    private int copyCoarser(String prefix, int scale, long gx0, long gy0,
+                            DwellData samples) {
+        int width = samples.getWidth();
+        int height = samples.getHeight();
+        int filled = 0;
+        long cx0 = floorDiv(gx0, scale);
+        long cx1 = floorDiv(gx0 + width - 1, scale);
+        long cy0 = floorDiv(gy0, scale);
+        long cy1 = floorDiv(gy0 + height - 1, scale);
+        for (long col = floorDiv(cx0, TILE_SIZE);
+             col <= floorDiv(cx1, TILE_SIZE); col++) {
+            for (long row = floorDiv(cy0, TILE_SIZE);
+                 row <= floorDiv(cy1, TILE_SIZE); row++) {
+                int[] dwells = (int[]) tiles.get(createKey(prefix, col, row));
+                if (dwells == null) {
+                    continue;
+                }
+                long first = col * TILE_SIZE * scale;
+                long last = (col * TILE_SIZE + TILE_SIZE - 1) * scale;
+                int x0 = (int) Math.max(0, first - gx0);
+                int x1 = (int) Math.min(width - 1, last - gx0);
+                first = row * TILE_SIZE * scale;
+                last = (row * TILE_SIZE + TILE_SIZE - 1) * scale;
+                int y0 = (int) Math.max(0, first - gy0);
+                int y1 = (int) Math.min(height - 1, last - gy0);
+                // Start on the first view pixel that is a point of the
+                // coarser level.
+                x0 += (int) (floorDiv(gx0 + x0 + scale - 1, scale)
+                             * scale - gx0 - x0);
+                y0 += (int) (floorDiv(gy0 + y0 + scale - 1, scale)
+                             * scale - gy0 - y0);
+                for (int x = x0; x <= x1; x += scale) {
+                    int lx = (int) (floorDiv(gx0 + x, scale)
+                                    - col * TILE_SIZE);
+                    for (int y = y0; y <= y1; y += scale) {
+                        if (samples.isComputed(x, y)) {
+                            continue;
+                        }
+                        int ly = (int) (floorDiv(gy0 + y, scale)
+                                        - row * TILE_SIZE);
+                        int dwell = dwells[lx * TILE_SIZE + ly];
+                        if (dwell != 0) {
+                            samples.set(x, y, dwell);
+                            filled++;
+                        }
+                    }
+                }
+            }
+        }
+        return filled;
+    }
+
+    /**
+     * Copies the dwells of the points at one finer level of the tree
+     * into the samples. Every pixel of the view lies on a point of the
+     * finer level.
+     *
+     * @param  prefix   key prefix of the finer level.
+     * @param  scale    pixels of the level per pixel of the view.
+     * @param  gx0      grid column of the first column of the view.
+     * @param  gy0      grid row of the first row of the view.
+     * @param  samples  samples of the view.
+     * @return  number of points filled in.
+     */
+    private int copyFiner(String prefix, int scale, long gx0, long gy0,
+                          DwellData samples) {
+        int width = samples.getWidth();
+        int height = samples.getHeight();
+        int filled = 0;
+        for (long col = floorDiv(gx0 * scale, TILE_SIZE);
+             col <= floorDiv((gx0 + width - 1) * scale, TILE_SIZE); col++) {
+            for (long row = floorDiv(gy0 * scale, TILE_SIZE);
+                 row <= floorDiv((gy0 + height - 1) * scale, TILE_SIZE);
+                 row++) {
+                int[] dwells = (int[]) tiles.get(createKey(prefix, col, row));
+                if (dwells == null) {
+                    continue;
+                }
+                // The tile size is a multiple of the scale, so the
+                // first point of each tile lies on a view pixel.
+                for (int lx = 0; lx < TILE_SIZE; lx += scale) {
+                    long x = (col * TILE_SIZE + lx) / scale - gx0;
+                    if (x < 0 || x >= width) {
+                        continue;
+                    }
+                    for (int ly = 0; ly < TILE_SIZE; ly += scale) {
+                        long y = (row * TILE_SIZE + ly) / scale - gy0;
+                        if (y < 0 || y >= height
+                            || samples.isComputed((int) x, (int) y)) {
+                            continue;
+                        }
+                        int dwell = dwells[lx * TILE_SIZE + ly];
+                        if (dwell != 0) {
+                            samples.set((int) x, (int) y, dwell);
+                            filled++;
+                        }
+                    }
+                }
+            }
+        }
+        return filled;
+    }
+
+    /**
+     * Copies the cached dwells of the points of the view into the
+     * samples, where the samples have not been computed already. The
+     * points cached at the same zoom are taken first, then those that
+     * coincide with points cached at coarser and finer zooms, by
+     * powers of two, of the same grid.
+     *
+     * @param  grid     pixel grid of the view.
+     * @param  samples  samples of the view, with their dwell limit set.
+     * @return  number of points taken from the cache.
+     */
+    public synchronized int fill(PixelGrid grid, DwellData samples) {
+        long gx0 = grid.getOriginX();
+        long gy0 = grid.getOriginY();
+        int filled = 0;
+        for (int level = 0; level <= COARSER_LEVELS; level++) {
+            String prefix = createPrefix(grid, level, samples);
+            if (levels.containsKey(prefix)) {
+                filled += copyCoarser(prefix, 1 << level, gx0, gy0, samples);
+            }
+        }
+        if (Math.abs(gx0) < FINER_LIMIT && Math.abs(gy0) < FINER_LIMIT) {
+            for (int level = 1; level <= FINER_LEVELS; level++) {
+                String prefix = createPrefix(grid, -level, samples);
+                if (levels.containsKey(prefix)) {
+                    filled += copyFiner(prefix, 1 << level, gx0, gy0,
+                                        samples);
+                }
+            }
+        }
+        hits += filled;
+        return filled;
+    }
+
+    /**
+     * Returns the quotient of the given numbers, rounded down.
+     *
+     * @param  a  dividend.
+     * @param  b  divisor, greater than zero.
+     * @return  quotient.
+     */
+    private static long floorDiv(long a, long b) {
+        long q = a / b;
+        return a < 0 && q * b != a ? q - 1 : q;
+    }
+
+    /**
+     * Adjusts the number of tiles cached at the given level, so that
+     * levels without any tiles can be skipped.
+     *
+     * @param  prefix  key prefix of the level.
+     * @param  delta   change in the number of tiles.
+     */
+    private void countLevel(String prefix, int delta) {
+        int[] count = (int[]) levels.get(prefix);
+        if (count == null) {
+            count = new int[1];
+            levels.put(prefix, count);
+        }
+        count[0] += delta;
+        if (count[0] <= 0) {
+            levels.remove(prefix);
+        }
+    }
+
+    /**
+     * Returns the part of the tile key shared by all of the tiles of
+     * the view at the given level.
+     *
+     * @param  grid     pixel grid of the view.
+     * @param  level    power of two by which the level is coarser.
+     * @param  samples  samples of the view.
+     * @return  key prefix.
+     */
+    private static String createPrefix(PixelGrid grid, int level,
+                                       DwellData samples) {
+        return grid.getKey(level) + '/' + samples.getDwellLimit() + '/';
+    }
+
+    /**
+     * Returns the key of the given tile.
+     *
+     * @param  prefix  key prefix of the view.
+     * @param  col     tile column.
+     * @param  row     tile row.
+     * @return  tile key.
+     */
+    private static String createKey(String prefix, long col, long row) {
+        return prefix + col + ',' + row;
+    }
+
+    /**
+     * Returns the number of points taken from the cache.
+     *
+     * @return  hit count.
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * Saves the computed points of the view in the cache, merging them
+     * with the tiles already cached.
+     *
+     * @param  grid     pixel grid of the view.
+     * @param  samples  samples of the view.
+     */
+    public synchronized void store(PixelGrid grid, DwellData samples) {
+        if (capacity == 0) {
+            return;
+        }
+        String prefix = createPrefix(grid, 0, samples);
+        int width = samples.getWidth();
+        int height = samples.getHeight();
+        long gx0 = grid.getOriginX();
+        long gy0 = grid.getOriginY();
+        for (long col = floorDiv(gx0, TILE_SIZE);
+             col <= floorDiv(gx0 + width - 1, TILE_SIZE); col++) {
+            for (long row = floorDiv(gy0, TILE_SIZE);
+                 row <= floorDiv(gy0 + height - 1, TILE_SIZE); row++) {
+                String key = createKey(prefix, col, row);
+                int[] dwells = (int[]) tiles.get(key);
+                if (dwells == null) {
+                    dwells = new int[TILE_SIZE * TILE_SIZE];
+                    tiles.put(key, dwells);
+                    countLevel(prefix, 1);
+                }
+                int x0 = (int) Math.max(0, col * TILE_SIZE - gx0);
+                int x1 = (int) Math.min(width, (col + 1) * TILE_SIZE - gx0);
+                int y0 = (int) Math.max(0, row * TILE_SIZE - gy0);
+                int y1 = (int) Math.min(height, (row + 1) * TILE_SIZE - gy0);
+                for (int x = x0; x < x1; x++) {
+                    int offset = (int) (gx0 + x - col * TILE_SIZE) * TILE_SIZE
+                        - (int) (row * TILE_SIZE - gy0);
+                    for (int y = y0; y < y1; y++) {
+                        int dwell = samples.get(x, y);
+                        if (dwell > 0) {
+                            dwells[offset + y] = dwell;
+                        }
+                    }
+                }
+            }
+        }
+        Iterator iter = tiles.keySet().iterator();
+        while (tiles.size() > capacity && iter.hasNext()) {
+            String key = (String) iter.next();
+            iter.remove();
+            countLevel(key.substring(0, key.lastIndexOf('/') + 1), -1);
+            evictions++;
+        }
+    }
+
+    /**
+     * Returns a summary of the cache usage.
+     *
+     * @return  summary string.
+     */
+    public synchronized String toString() {
+        return "TileCache=[tiles=" + tiles.size() + ", capacity=" + capacity
+            + ", hits=" + hits + ", evictions=" + evictions + "]";
+    }
+}
@@ -0,0 +1,54 @@
+/*********************************************************************
+ *
+ *      Copyright (C) 2002-2014 Nathan Fiedler
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * $Id$
+ *
+ ********************************************************************/
+
+package com.bluemarsh.benoit.render;
+
+/**
+ * A TileOrder decides the order in which the tiles of an image are
+ * rendered. The tile scheduler ranks the tiles at the start of each
+ * pass, and ranks the remaining tiles again whenever the order reports
+ * a change, so an order may change as the render progresses, such as
+ * when the user scrolls the view. When several threads render
+ * one image, they take the tiles in the order given by the TileOrder.
+ *
+ * @author  Nathan Fiedler
+ */
+public interface TileOrder {
+
+    /**
+     * Returns the priority of the given tile, where tiles with lower
+     * values are rendered first.
+     *
+     * @param  tile  tile to be ranked.
+     * @return  priority of the tile.
+     */
+    double priority(Tile tile);
+
+    /**
+     * Called each time a tile is requested, allowing the order to take
+     * a consistent snapshot of any changing state.
+     *
+     * @return  true if the priorities may have changed since the last
+     *          update, false if they are as they were.
+     */
+    boolean update();
+}
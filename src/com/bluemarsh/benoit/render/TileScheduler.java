@@ -0,0 +1,184 @@
+/*********************************************************************
+ *
+ *      Copyright (C) 2002-2014 Nathan Fiedler
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * $Id$
+ *
+ ********************************************************************/
+
+package com.bluemarsh.benoit.render;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Divides an image into tiles and hands them out in the order given by
+ * a tile order. The tiles are ranked once at the start of each pass,
+ * and the remaining tiles are ranked again whenever the order reports
+ * a change, so the order adapts when, for instance, the user scrolls
+ * in the middle of a render. Handing out a tile otherwise takes
+ * constant time. The scheduler is safe for use by multiple threads,
+ * each of which receives the best remaining tile when it asks for one.
+ *
+ * @author  Nathan Fiedler
+ */
+public class TileScheduler {
+    /** Default width and height of the tiles, a multiple of any step. */
+    public static final int DEFAULT_TILE_SIZE = 32;
+    /** All of the tiles of the image. */
+    private List tiles;
+    /** Tiles not yet handed out in the current pass, best last. */
+    private List remaining;
+    /** Order in which the tiles are handed out. */
+    private TileOrder order;
+
+    /**
+     * Constructs a TileScheduler for an image of the given size.
+     *
+     * @param  width     width of the image.
+     * @param  height    height of the image.
+     * @param  tileSize  width and height of each tile.
+     * @param  order     order in which to hand out the tiles.
+     */
+    public TileScheduler(int width, int height, int tileSize,
+                         TileOrder order) {
+        this.order = order;
+        tiles = new ArrayList();
+        for (int x = 0; x < width; x += tileSize) {
+            int w = Math.min(tileSize, width - x);
+            for (int y = 0; y < height; y += tileSize) {
+                int h = Math.min(tileSize, height - y);
+                tiles.add(new Tile(x, y, w, h));
+            }
+        }
+        remaining = new ArrayList();
+    }
+
+    /**
+     * Sets the order in which the tiles are handed out.
+     *
+     * @param  order  tile order.
+     */
+    public synchronized void setOrder(TileOrder order) {
+        this.order = order;
+    }
+
+    /**
+     * Splits the tiles whose estimated cost is well above the average
+     * into quarters, so that no single tile holds up the end of a pass.
+     * The split tiles stay split for the passes that follow.
+     *
+     * @param  costs    estimates the cost of each tile.
+     * @param  step     sample step of the next pass.
+     * @param  factor   how many times the average cost a tile must
+     *                  exceed to be split.
+     * @param  minSize  tiles smaller than this are not split.
+     * @return  number of tiles that were split.
+     */
+    public synchronized int splitHotTiles(CostOrder costs, int step,
+                                          double factor, int minSize) {
+        double total = 0.0;
+        for (int i = 0; i < tiles.size(); i++) {
+            total += costs.getCost((Tile) tiles.get(i));
+        }
+        double threshold = factor * total / tiles.size();
+        int split = 0;
+        List result = new ArrayList(tiles.size());
+        for (int i = 0; i < tiles.size(); i++) {
+            Tile tile = (Tile) tiles.get(i);
+            Tile[] parts = null;
+            if (costs.getCost(tile) > threshold
+                && Math.min(tile.getWidth(), tile.getHeight())
+                   >= 2 * minSize) {
+                parts = tile.split(Math.max(step, minSize));
+            }
+            if (parts == null) {
+                result.add(tile);
+            } else {
+                for (int j = 0; j < parts.length; j++) {
+                    costs.getCost(parts[j]);
+                    result.add(parts[j]);
+                }
+                split++;
+            }
+        }
+        tiles = result;
+        return split;
+    }
+
+    /**
+     * Returns the number of tiles in each pass.
+     *
+     * @return  number of tiles.
+     */
+    public synchronized int getTileCount() {
+        return tiles.size();
+    }
+
+    /**
+     * Returns the tile with the highest priority that has not yet been
+     * handed out in this pass.
+     *
+     * @return  next tile, or null if the pass is finished.
+     */
+    public synchronized Tile nextTile() {
+        if (remaining.isEmpty()) {
+            return null;
+        }
+        if (order.update()) {
+            rank();
+        }
+        return (Tile) remaining.remove(remaining.size() - 1);
+    }
+
+    /**
+     * Returns a tile that was handed out in this pass but not finished,
+     * such as one stopped by a pause, so that it is handed out next.
+     *
+     * @param  tile  unfinished tile.
+     */
+    public synchronized void putBack(Tile tile) {
+        remaining.add(tile);
+    }
+
+    /**
+     * Sorts the remaining tiles by their priority, best last. Of tiles
+     * with equal priority, the one first in the image comes last.
+     */
+    private void rank() {
+        final TileOrder o = order;
+        Collections.reverse(remaining);
+        Collections.sort(remaining, new Comparator() {
+            public int compare(Object a, Object b) {
+                return Double.compare(o.priority((Tile) b),
+                                      o.priority((Tile) a));
+            }
+        });
+    }
+
+    /**
+     * Starts a new pass over all of the tiles.
+     */
+    public synchronized void reset() {
+        remaining.clear();
+        remaining.addAll(tiles);
+        order.update();
+        rank();
+    }
+}
@@ -0,0 +1,177 @@
+/*********************************************************************
+ *
+ *      Copyright (C) 2002-2014 Nathan Fiedler
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * $Id$
+ *
+ ********************************************************************/
+
+package com.bluemarsh.benoit.render;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * Holds the render settings tuned for this machine, such as the tile
+ * size for each type of number and the number of render threads. The
+ * settings are found by a {@link Calibration} and kept in a properties
+ * file in the user's home directory.
+ *
+ * @author  Nathan Fiedler
+ */
+public class Tuning {
+    /** Key of the number of processors when the settings were tuned. */
+    public static final String PROCESSORS = "processors";
+    /** Key of the number of render threads. */
+    public static final String THREADS = "threads";
+    /** Prefix of the keys of the tile sizes, followed by the type. */
+    public static final String TILE_SIZE = "tileSize.";
+    /** Logger. */
+    private static Logger logger = Logger.getLogger(
+        "com.bluemarsh.benoit.render");
+    /** The settings of this machine. */
+    private static Tuning defaultTuning;
+    /** File in which the settings are kept. */
+    private File file;
+    /** The tuned settings. */
+    private Properties props;
+
+    /**
+     * Constructs a Tuning, reading the settings from the given file if
+     * it exists.
+     *
+     * @param  file  file in which the settings are kept.
+     */
+    public Tuning(File file) {
+        this.file = file;
+        props = new Properties();
+        if (file.exists()) {
+            try {
+                InputStream in = new FileInputStream(file);
+                try {
+                    props.load(in);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException ioe) {
+                logger.warning("could not read tuning: " + ioe);
+            }
+        }
+    }
+
+    /**
+     * Returns the settings of this machine, reading them if necessary.
+     *
+     * @return  machine settings.
+     */
+    public static synchronized Tuning getDefault() {
+        if (defaultTuning == null) {
+            File dir = new File(System.getProperty("user.home"), ".benoit");
+            defaultTuning = new Tuning(new File(dir, "tuning.properties"));
+        }
+        return defaultTuning;
+    }
+
+    /**
+     * Returns the integer value of the given setting.
+     *
+     * @param  key  name of the setting.
+     * @param  def  value to return if the setting is missing or invalid.
+     * @return  value of the setting.
+     */
+    public synchronized int getInt(String key, int def) {
+        String value = props.getProperty(key);
+        if (value != null) {
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException nfe) {
+                // fall through
+            }
+        }
+        return def;
+    }
+
+    /**
+     * Returns the number of render threads.
+     *
+     * @param  def  value to return if not tuned.
+     * @return  number of threads.
+     */
+    public int getThreadCount(int def) {
+        int count = getInt(THREADS, def);
+        return count > 0 ? count : def;
+    }
+
+    /**
+     * Returns the tile size for the given type of number.
+     *
+     * @param  type  key of the number type, as from the renderer.
+     * @param  def   value to return if not tuned.
+     * @return  tile size in pixels.
+     */
+    public int getTileSize(String type, int def) {
+        int size = getInt(TILE_SIZE + type, def);
+        return size > 0 ? size : def;
+    }
+
+    /**
+     * Indicates if the settings have been tuned on this machine. The
+     * settings are out of date if the number of processors has changed
+     * since they were tuned.
+     *
+     * @return  true if tuned, false otherwise.
+     */
+    public boolean isTuned() {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        return getInt(PROCESSORS, 0) == cpus;
+    }
+
+    /**
+     * Saves the settings to the file.
+     *
+     * @throws  IOException
+     *          if the file could not be written.
+     */
+    public synchronized void save() throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.exists()) {
+            dir.mkdirs();
+        }
+        OutputStream out = new FileOutputStream(file);
+        try {
+            props.store(out, "Benoit render tuning");
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Sets the integer value of the given setting.
+     *
+     * @param  key    name of the setting.
+     * @param  value  value of the setting.
+     */
+    public synchronized void setInt(String key, int value) {
+        props.setProperty(key, String.valueOf(value));
+    }
+}
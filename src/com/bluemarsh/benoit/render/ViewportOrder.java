@@ -0,0 +1,125 @@
+/*********************************************************************
+ *
+ *      Copyright (C) 2002-2014 Nathan Fiedler
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * $Id$
+ *
+ ********************************************************************/
+
+package com.bluemarsh.benoit.render;
+
+import java.awt.Rectangle;
+
+/**
+ * Orders the tiles such that the visible tiles come first, followed by
+ * the hidden tiles in order of their distance from the view. Tiles that
+ * lie in the direction the user last scrolled are favored. The visible
+ * tiles are ranked by another order, or from the middle of the view out
+ * if no other order is given.
+ *
+ * @author  Nathan Fiedler
+ */
+public class ViewportOrder implements TileOrder {
+    /** Priority offset placing hidden tiles after the visible ones. */
+    private static final double HIDDEN_OFFSET = 1.0e6;
+    /** Portion of the image visible to the user. */
+    private VisibleRegion region;
+    /** Order of the visible tiles, may be null. */
+    private TileOrder visibleOrder;
+    /** Order used when the view is not yet known. */
+    private TileOrder fallbackOrder;
+    /** Snapshot of the visible bounds. */
+    private Rectangle view;
+    /** Snapshot of the horizontal scroll direction. */
+    private int scrollX;
+    /** Snapshot of the vertical scroll direction. */
+    private int scrollY;
+
+    /**
+     * Constructs a ViewportOrder.
+     *
+     * @param  region        portion of the image visible to the user.
+     * @param  visibleOrder  order of the visible tiles, may be null.
+     */
+    public ViewportOrder(VisibleRegion region, TileOrder visibleOrder) {
+        this.region = region;
+        this.visibleOrder = visibleOrder;
+        fallbackOrder = visibleOrder == null ? new ColumnOrder()
+            : visibleOrder;
+    }
+
+    /**
+     * Returns the priority of the given tile.
+     *
+     * @param  tile  tile to be ranked.
+     * @return  priority of the tile.
+     */
+    public double priority(Tile tile) {
+        if (view == null) {
+            return fallbackOrder.priority(tile);
+        }
+        int left = tile.getX();
+        int top = tile.getY();
+        int right = left + tile.getWidth();
+        int bottom = top + tile.getHeight();
+        int gapX = Math.max(Math.max(view.x - right, left - view.x
+                                     - view.width), 0);
+        int gapY = Math.max(Math.max(view.y - bottom, top - view.y
+                                     - view.height), 0);
+        if (gapX == 0 && gapY == 0) {
+            if (visibleOrder != null) {
+                return visibleOrder.priority(tile);
+            }
+            // Visible tiles go first, from the middle of the view out.
+            double cx = left + tile.getWidth() / 2.0 - view.getCenterX();
+            double cy = top + tile.getHeight() / 2.0 - view.getCenterY();
+            return Math.sqrt(cx * cx + cy * cy);
+        }
+        double gap = Math.sqrt((double) gapX * gapX + (double) gapY * gapY);
+        boolean ahead = (scrollX > 0 && left >= view.x + view.width)
+            || (scrollX < 0 && right <= view.x)
+            || (scrollY > 0 && top >= view.y + view.height)
+            || (scrollY < 0 && bottom <= view.y);
+        if (ahead) {
+            // The user will likely keep scrolling in the same direction.
+            gap /= 2.0;
+        }
+        return HIDDEN_OFFSET + gap;
+    }
+
+    /**
+     * Takes a snapshot of the visible region and scroll direction.
+     *
+     * @return  true if either has changed, or the order of the visible
+     *          tiles may have, false otherwise.
+     */
+    public boolean update() {
+        Rectangle oldView = view;
+        int oldScrollX = scrollX;
+        int oldScrollY = scrollY;
+        view = region.getBounds();
+        scrollX = region.getScrollX();
+        scrollY = region.getScrollY();
+        boolean changed = (view == null ? oldView != null
+                           : !view.equals(oldView))
+            || scrollX != oldScrollX || scrollY != oldScrollY;
+        if (visibleOrder != null && visibleOrder.update()) {
+            changed = true;
+        }
+        return changed;
+    }
+}
@@ -0,0 +1,87 @@
+/*********************************************************************
+ *
+ *      Copyright (C) 2002-2014 Nathan Fiedler
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * $Id$
+ *
+ ********************************************************************/
+
+package com.bluemarsh.benoit.render;
+
+import java.awt.Rectangle;
+
+/**
+ * Tracks the portion of the image that is visible to the user, and the
+ * direction in which the user last scrolled. The region is updated by
+ * the user interface while renders are in progress, so that renderers
+ * can change the order of the remaining work as the user scrolls.
+ *
+ * @author  Nathan Fiedler
+ */
+public class VisibleRegion {
+    /** Visible portion of the image, or null if unknown. */
+    private Rectangle bounds;
+    /** Direction of the last horizontal scroll (-1, 0, or 1). */
+    private int scrollX;
+    /** Direction of the last vertical scroll (-1, 0, or 1). */
+    private int scrollY;
+
+    /**
+     * Returns the visible portion of the image.
+     *
+     * @return  copy of the visible bounds, or null if unknown.
+     */
+    public synchronized Rectangle getBounds() {
+        return bounds == null ? null : new Rectangle(bounds);
+    }
+
+    /**
+     * Returns the direction of the last horizontal scroll.
+     *
+     * @return  negative if left, positive if right, zero if none.
+     */
+    public synchronized int getScrollX() {
+        return scrollX;
+    }
+
+    /**
+     * Returns the direction of the last vertical scroll.
+     *
+     * @return  negative if up, positive if down, zero if none.
+     */
+    public synchronized int getScrollY() {
+        return scrollY;
+    }
+
+    /**
+     * Sets the visible portion of the image. If the region has moved,
+     * the direction of the movement is remembered.
+     *
+     * @param  r  new visible bounds.
+     */
+    public synchronized void setBounds(Rectangle r) {
+        if (bounds != null) {
+            if (r.x != bounds.x) {
+                scrollX = r.x > bounds.x ? 1 : -1;
+            }
+            if (r.y != bounds.y) {
+                scrollY = r.y > bounds.y ? 1 : -1;
+            }
+        }
+        bounds = new Rectangle(r);
+    }
+}
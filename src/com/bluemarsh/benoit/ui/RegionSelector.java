@@ -75,6 +75,7 @@ public class RegionSelector implements MouseListener, MouseMotionListener {
      * @param  e  mouse event.
      */
     public void mouseDragged(MouseEvent e) {
+        set.markInteraction();
         int originalX = mousePressedX;
         int originalY = mousePressedY;
         int latestX = e.getX();
@@ -121,6 +122,7 @@ public class RegionSelector implements MouseListener, MouseMotionListener {
      * @param  e  mouse event
      */
     public void mousePressed(MouseEvent e) {
+        set.markInteraction();
         mousePressedX = e.getX();
         mousePressedY = e.getY();
     }
@@ -131,6 +133,7 @@ public class RegionSelector implements MouseListener, MouseMotionListener {
      * @param  e  mouse event
      */
     public void mouseReleased(MouseEvent e) {
+        set.markInteraction();
         // Erase the selection rectangle.
         set.showSelection(0, 0, 0, 0);
 
@@ -161,6 +164,10 @@ public class RegionSelector implements MouseListener, MouseMotionListener {
         BenoitNumber x2 = params.transformX(latestX, width);
         BenoitNumber y2 = params.transformY(latestY, height);
 
+        // Focus the render on the center of the selection.
+        set.setFocus(params.transformX((originalX + latestX) / 2, width),
+                     params.transformY((originalY + latestY) / 2, height));
+
         // Set the new parameters and render the region.
         params = new Parameters(x1, x2, y1, y2);
         set.setParameters(params);
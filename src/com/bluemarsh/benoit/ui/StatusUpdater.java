@@ -27,7 +27,9 @@ import com.bluemarsh.benoit.SetEvent;
 import com.bluemarsh.benoit.SetListener;
 import com.bluemarsh.benoit.render.Renderer;
 import com.bluemarsh.benoit.render.RenderEvent;
+import com.bluemarsh.benoit.render.RenderJob;
 import com.bluemarsh.benoit.render.RenderListener;
+import java.awt.EventQueue;
 import java.awt.Frame;
 
 /**
@@ -36,11 +38,17 @@ import java.awt.Frame;
  *
  * @author  Nathan Fiedler
  */
-public class StatusUpdater implements RenderListener, SetListener {
+public class StatusUpdater implements RenderListener, SetListener, Runnable {
     /** Frame in which to indicate status. */
     protected Frame frame;
     /** Renderer we are listening to. */
     protected Renderer renderer;
+    /** Most recent percentage reported by the renderer. */
+    private int latestPercent;
+    /** Percentage currently shown in the frame title. */
+    private int shownPercent = -1;
+    /** True if a title update is waiting to run on the event thread. */
+    private boolean updatePending;
 
     /**
      * Constructs a StatusUpdater.
@@ -62,12 +70,38 @@ public class StatusUpdater implements RenderListener, SetListener {
     }
 
     /**
-     * Called whenever the rendered image has been updated.
+     * Called whenever the rendered image has been updated. The frame
+     * title is updated on the event dispatch thread, at most once for
+     * any number of events that arrive in the meantime. Events from
+     * renders that have been cancelled are ignored.
      *
      * @param  e  render update event.
      */
     public void imageUpdated(RenderEvent e) {
-        int pct = e.getPercentDone();
+        RenderJob job = e.getJob();
+        if (job != null && job.getCancelToken().isCancelled()) {
+            return;
+        }
+        synchronized (this) {
+            latestPercent = e.getPercentDone();
+            if (updatePending || latestPercent == shownPercent) {
+                return;
+            }
+            updatePending = true;
+        }
+        EventQueue.invokeLater(this);
+    }
+
+    /**
+     * Shows the latest percentage in the frame title.
+     */
+    public void run() {
+        int pct;
+        synchronized (this) {
+            updatePending = false;
+            pct = latestPercent;
+            shownPercent = pct;
+        }
         frame.setTitle(Bundle.getString("AppTitle") + " - " +
                        pct + Bundle.getString("pctComplete"));
     }